@@ -0,0 +1,159 @@
+package net.morbz.osmonaut;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.morbz.osmonaut.osm.Entity;
+import net.morbz.osmonaut.osm.EntityType;
+import net.morbz.osmonaut.osm.Tags;
+
+/**
+ * Passes the found entities to a concurrent receiver on separate threads, so
+ * that a receiver that blocks doesn't hold back the decoding. On Java 21 and
+ * later every callback runs on its own virtual thread, otherwise on a pool of
+ * platform threads. A semaphore limits the number of concurrent callbacks, 
+ * when the limit is reached the calling thread waits.
+ */
+class AsyncReceiver implements IConcurrentOsmonautReceiver {
+	private IConcurrentOsmonautReceiver receiver;
+	private int maxCallbacks;
+	private Semaphore callbacks;
+	private ExecutorService executorService;
+	private volatile Throwable error;
+
+	/**
+	 * @param receiver
+	 *            The receiver to pass the entities to
+	 * @param maxCallbacks
+	 *            The maximum number of concurrent callbacks
+	 */
+	public AsyncReceiver(IConcurrentOsmonautReceiver receiver, int maxCallbacks) {
+		this.receiver = receiver;
+		this.maxCallbacks = maxCallbacks;
+		callbacks = new Semaphore(maxCallbacks);
+		executorService = createExecutorService(maxCallbacks);
+	}
+
+	private static ExecutorService createExecutorService(int threads) {
+		// Virtual threads are only available since Java 21
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)method.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				private AtomicInteger threadCount = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "osmonaut-receiver-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean needsEntity(EntityType type, Tags tags) {
+		return receiver.needsEntity(type, tags);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void foundEntity(final Entity entity) {
+		try {
+			callbacks.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Thread was interrupted.", e);
+		}
+
+		try {
+			executorService.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						receiver.foundEntity(entity);
+					} catch (Throwable e) {
+						// Errors are reported too, the executor would drop them
+						error = e;
+					} finally {
+						callbacks.release();
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			// The callback won't run
+			callbacks.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Waits until all callbacks are finished.
+	 * 
+	 * @throws RuntimeException
+	 *             If a callback failed
+	 */
+	public void awaitCallbacks() {
+		callbacks.acquireUninterruptibly(maxCallbacks);
+		callbacks.release(maxCallbacks);
+
+		if(error != null) {
+			throw new RuntimeException("The receiver failed to process an entity.", error);
+		}
+	}
+
+	/**
+	 * Waits until all callbacks are finished and stops the threads.
+	 */
+	public void close() {
+		try {
+			awaitCallbacks();
+		} finally {
+			executorService.shutdown();
+		}
+	}
+
+	/**
+	 * Stops the threads without waiting for the callbacks, e.g. after the 
+	 * scan failed.
+	 */
+	public void shutdown() {
+		executorService.shutdown();
+	}
+}
@@ -0,0 +1,117 @@
+package net.morbz.osmonaut;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.morbz.osmonaut.osm.Entity;
+
+/**
+ * A thread-safe entity map for two phases. During the fill phase multiple 
+ * threads may add entities at the same time. The entities are distributed
+ * over lock-striped memory maps by ID range, so that threads adding distant
+ * IDs don't block each other. After the map has been frozen, lookups don't 
+ * take any locks.
+ */
+public class ConcurrentEntityMap<T extends Entity> implements EntityMap<T> {
+	private static final int STRIPES = 64;
+	private static final int IDS_PER_RANGE_SHIFT = 12;
+
+	private List<MemoryEntityMap<T>> stripes = new ArrayList<MemoryEntityMap<T>>(STRIPES);
+	private volatile boolean frozen = false;
+
+	/**
+	 * Creates an empty map in the fill phase.
+	 */
+	public ConcurrentEntityMap() {
+		for(int i = 0; i < STRIPES; i++) {
+			stripes.add(new MemoryEntityMap<T>());
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void add(T entity) {
+		if(frozen) {
+			throw new IllegalStateException("The entity map has been frozen.");
+		}
+
+		MemoryEntityMap<T> stripe = getStripe(entity.getId());
+		synchronized(stripe) {
+			stripe.add(entity);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public T get(long id) {
+		MemoryEntityMap<T> stripe = getStripe(id);
+		if(frozen) {
+			return stripe.get(id);
+		}
+
+		// Lookups during the fill phase may sort the buckets
+		synchronized(stripe) {
+			return stripe.get(id);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void freeze() {
+		for(MemoryEntityMap<T> stripe : stripes) {
+			synchronized(stripe) {
+				stripe.freeze();
+			}
+		}
+		frozen = true;
+	}
+
+	private MemoryEntityMap<T> getStripe(long id) {
+		// Negative IDs are complemented, i.e. -1 becomes 0
+		if(id < 0) {
+			id = ~id;
+		}
+		return stripes.get((int)((id >>> IDS_PER_RANGE_SHIFT) % STRIPES));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void close() {
+		for(MemoryEntityMap<T> stripe : stripes) {
+			stripe.close();
+		}
+	}
+}
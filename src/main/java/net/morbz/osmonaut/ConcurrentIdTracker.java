@@ -0,0 +1,217 @@
+package net.morbz.osmonaut;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An ID set that can be used by multiple threads at the same time without
+ * locking. The IDs are stored as bits in pages of 64-bit words that are 
+ * updated with compare-and-set. Pages are allocated on first use and are kept
+ * when they become empty. Negative IDs are stored in separate directories. 
+ * The pages of IDs with an absolute value of 2^36 and more are kept in a hash
+ * map instead, so that the whole range of 64-bit IDs can be used.
+ */
+public class ConcurrentIdTracker implements IdSet {
+	private static final int PAGE_SHIFT = 16; // 65536 IDs per page
+	private static final int WORDS_PER_PAGE = 1 << (PAGE_SHIFT - 6);
+	private static final int WORD_MASK = WORDS_PER_PAGE - 1;
+	private static final int DIRECTORY_SHIFT = 16; // 65536 pages per directory
+	private static final int DIRECTORY_MASK = (1 << DIRECTORY_SHIFT) - 1;
+	// The directories hold the pages of IDs below 2^36
+	private static final int MAX_DIRECTORIES = 1 << 4;
+
+	// Directories are never replaced, so pages can be added to them while 
+	// the array of directories is grown
+	private volatile AtomicReferenceArray<?>[] directories = new AtomicReferenceArray<?>[0];
+	// Negative IDs are stored by their complement, i.e. -1 becomes 0
+	private volatile AtomicReferenceArray<?>[] negativeDirectories = new AtomicReferenceArray<?>[0];
+	// Pages of IDs from 2^36 up, keyed by the ID shifted by the page bits
+	private ConcurrentMap<Long, AtomicLongArray> sparsePages = new ConcurrentHashMap<Long, AtomicLongArray>();
+	private LongAdder cardinality = new LongAdder();
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void set(long id) {
+		AtomicLongArray page = getPage(id, true);
+		long index = getIndex(id);
+		int wordId = getWordId(index);
+		long bit = 1L << index;
+		while(true) {
+			long word = page.get(wordId);
+			if((word & bit) != 0) {
+				return;
+			}
+			if(page.compareAndSet(wordId, word, word | bit)) {
+				cardinality.increment();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean get(long id) {
+		AtomicLongArray page = getPage(id, false);
+		if(page == null) {
+			return false;
+		}
+		long index = getIndex(id);
+		return (page.get(getWordId(index)) & (1L << index)) != 0;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void unset(long id) {
+		AtomicLongArray page = getPage(id, false);
+		if(page == null) {
+			return;
+		}
+
+		long index = getIndex(id);
+		int wordId = getWordId(index);
+		long bit = 1L << index;
+		while(true) {
+			long word = page.get(wordId);
+			if((word & bit) == 0) {
+				return;
+			}
+			if(page.compareAndSet(wordId, word, word & ~bit)) {
+				cardinality.decrement();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isEmpty() {
+		return cardinality.sum() == 0;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long size() {
+		return cardinality.sum();
+	}
+
+	@SuppressWarnings("unchecked")
+	private AtomicLongArray getPage(long id, boolean create) {
+		// Get directory
+		boolean negative = id < 0;
+		long pageId = getIndex(id) >>> PAGE_SHIFT;
+		if(pageId >= MAX_DIRECTORIES << DIRECTORY_SHIFT) {
+			return getSparsePage(id, create);
+		}
+		int directoryId = (int)(pageId >>> DIRECTORY_SHIFT);
+		AtomicReferenceArray<?>[] currentDirectories = negative ? negativeDirectories : directories;
+		AtomicReferenceArray<AtomicLongArray> directory = null;
+		if(directoryId < currentDirectories.length) {
+			directory = (AtomicReferenceArray<AtomicLongArray>)currentDirectories[directoryId];
+		}
+		if(directory == null) {
+			if(!create) {
+				return null;
+			}
+			directory = createDirectory(negative, directoryId);
+		}
+
+		// Get/create page
+		int pageIndex = (int)pageId & DIRECTORY_MASK;
+		AtomicLongArray page = directory.get(pageIndex);
+		if(page == null && create) {
+			page = new AtomicLongArray(WORDS_PER_PAGE);
+			if(!directory.compareAndSet(pageIndex, null, page)) {
+				// Created by another thread
+				page = directory.get(pageIndex);
+			}
+		}
+		return page;
+	}
+
+	private AtomicLongArray getSparsePage(long id, boolean create) {
+		AtomicLongArray page = sparsePages.get(id >> PAGE_SHIFT);
+		if(page == null && create) {
+			page = new AtomicLongArray(WORDS_PER_PAGE);
+			AtomicLongArray existingPage = sparsePages.putIfAbsent(id >> PAGE_SHIFT, page);
+			if(existingPage != null) {
+				// Created by another thread
+				page = existingPage;
+			}
+		}
+		return page;
+	}
+
+	@SuppressWarnings("unchecked")
+	private synchronized AtomicReferenceArray<AtomicLongArray> createDirectory(boolean negative, 
+			int directoryId) {
+		// Check again, another thread may have created it
+		AtomicReferenceArray<?>[] currentDirectories = negative ? negativeDirectories : directories;
+		if(directoryId < currentDirectories.length && currentDirectories[directoryId] != null) {
+			return (AtomicReferenceArray<AtomicLongArray>)currentDirectories[directoryId];
+		}
+
+		// Publish a grown copy
+		AtomicReferenceArray<?>[] newDirectories = Arrays.copyOf(currentDirectories, 
+				Math.max(directoryId + 1, currentDirectories.length));
+		AtomicReferenceArray<AtomicLongArray> directory = 
+				new AtomicReferenceArray<AtomicLongArray>(1 << DIRECTORY_SHIFT);
+		newDirectories[directoryId] = directory;
+		if(negative) {
+			negativeDirectories = newDirectories;
+		} else {
+			directories = newDirectories;
+		}
+		return directory;
+	}
+
+	/**
+	 * @param id The entity ID
+	 * @return The ID without sign, negative IDs are complemented
+	 */
+	private long getIndex(long id) {
+		return id < 0 ? ~id : id;
+	}
+
+	private int getWordId(long index) {
+		return (int)(index >>> 6) & WORD_MASK;
+	}
+}
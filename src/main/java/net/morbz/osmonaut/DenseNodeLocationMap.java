@@ -0,0 +1,204 @@
+package net.morbz.osmonaut;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+
+import net.morbz.osmonaut.osm.LatLon;
+import net.morbz.osmonaut.osm.Node;
+
+/**
+ * Stores only the locations of nodes in a memory mapped temporary file with 
+ * 8 bytes for every possible node ID, so that a lookup is a single read at 
+ * the position of the ID. The file is sparse on most file systems, only the 
+ * pages that contain nodes take up disk space. Meant for planet-sized files,
+ * where most node IDs are needed. Negative IDs and IDs of 2^36 and more, 
+ * which would need a file of more than 512 GB, are stored in a 
+ * NodeLocationMap instead.
+ */
+public class DenseNodeLocationMap implements EntityMap<Node> {
+	private static final int SEGMENT_SHIFT = 30; // 1 GB per mapping
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+	private static final int IDS_PER_SEGMENT_SHIFT = SEGMENT_SHIFT - 3;
+	private static final long ID_MASK = (1L << IDS_PER_SEGMENT_SHIFT) - 1;
+	private static final long MAX_DENSE_ID = (1L << 36) - 1;
+	private static final double FIXED_POINT_SCALE = 10_000_000;
+	// Added to the stored latitudes, so that a location is never 0, which 
+	// marks missing nodes
+	private static final long LATITUDE_OFFSET = 1_000_000_000;
+
+	private File file;
+	private RandomAccessFile randomAccessFile;
+	private FileChannel channel;
+	private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+	private NodeLocationMap sparseNodes = new NodeLocationMap();
+
+	/**
+	 * Creates the map in a new temporary file.
+	 */
+	public DenseNodeLocationMap() {
+		try {
+			file = File.createTempFile("osmonaut-nodes", ".tmp");
+			file.deleteOnExit();
+			randomAccessFile = new RandomAccessFile(file, "rw");
+			channel = randomAccessFile.getChannel();
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to create node location file.", e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void add(Node node) {
+		long id = node.getId();
+		if(id < 0 || id > MAX_DENSE_ID) {
+			sparseNodes.add(node);
+			return;
+		}
+
+		// Map segment
+		int segmentId = (int)(id >>> IDS_PER_SEGMENT_SHIFT);
+		if(segmentId >= segments.length || segments[segmentId] == null) {
+			mapSegment(segmentId);
+		}
+
+		// Store location
+		LatLon latlon = node.getLatlon();
+		long lat = Math.round(latlon.getLat() * FIXED_POINT_SCALE) + LATITUDE_OFFSET;
+		long lon = Math.round(latlon.getLon() * FIXED_POINT_SCALE);
+		segments[segmentId].putLong(getPosition(id), (lat << 32) | (lon & 0xffffffffL));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Node get(long id) {
+		if(id < 0 || id > MAX_DENSE_ID) {
+			return sparseNodes.get(id);
+		}
+
+		// Read location
+		int segmentId = (int)(id >>> IDS_PER_SEGMENT_SHIFT);
+		if(segmentId >= segments.length || segments[segmentId] == null) {
+			return null;
+		}
+		long location = segments[segmentId].getLong(getPosition(id));
+		if(location == 0) {
+			return null;
+		}
+
+		// Same calculation as the PBF decoder with the default granularity of
+		// 100 nanodegrees, so that the coordinates are exactly the same
+		long lat = (location >> 32) - LATITUDE_OFFSET;
+		long lon = (int)location;
+		LatLon latlon = new LatLon(0.000000001 * (100L * lat), 0.000000001 * (100L * lon));
+		return new Node(id, null, latlon);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void freeze() {
+		sparseNodes.freeze();
+	}
+
+	/**
+	 * {@inheritDoc} Unmaps and deletes the temporary file. Must only be called
+	 * when no thread reads the map.
+	 */
+	@Override
+	public void close() {
+		for(MappedByteBuffer segment : segments) {
+			if(segment != null) {
+				unmap(segment);
+			}
+		}
+		segments = null;
+		sparseNodes.close();
+		try {
+			channel.close();
+			randomAccessFile.close();
+		} catch (IOException e) {
+		}
+		file.delete();
+	}
+
+	private void mapSegment(int segmentId) {
+		if(segmentId >= segments.length) {
+			segments = Arrays.copyOf(segments, segmentId + 1);
+		}
+		try {
+			// Mapping beyond the end of the file grows it
+			segments[segmentId] = channel.map(MapMode.READ_WRITE, segmentId * SEGMENT_SIZE, SEGMENT_SIZE);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to map node location file.", e);
+		}
+	}
+
+	/**
+	 * Unmaps the segment right away, so that the space of the file is freed 
+	 * when it is deleted and the file can be deleted on Windows at all. The 
+	 * JDK has no public API for this, so the cleaner of the buffer is invoked.
+	 * If that fails, the segment stays mapped until it is garbage collected.
+	 */
+	private static void unmap(MappedByteBuffer segment) {
+		try {
+			// Java 9 and later
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field unsafeField = unsafeClass.getDeclaredField("theUnsafe");
+			unsafeField.setAccessible(true);
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			invokeCleaner.invoke(unsafeField.get(null), segment);
+			return;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+		}
+		try {
+			// Java 8
+			Method cleanerMethod = segment.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(segment);
+			cleaner.getClass().getMethod("clean").invoke(cleaner);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+		}
+	}
+
+	private int getPosition(long id) {
+		return (int)(id & ID_MASK) << 3;
+	}
+}
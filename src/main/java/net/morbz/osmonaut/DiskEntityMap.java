@@ -24,47 +24,460 @@ package net.morbz.osmonaut;
 * SOFTWARE.
 */
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-
-import org.mapdb.DB;
-import org.mapdb.Serializer;
+import java.util.PriorityQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import net.morbz.osmonaut.osm.Entity;
 
 /**
- * Uses MapDB for storing entities.
+ * Stores entities in an append-only temporary file. The entities are 
+ * collected into blocks, which are sorted by ID, compressed and appended to
+ * the file. An in-memory index holds the ID range and file position of every
+ * block, and the most recently used blocks are kept decoded. The entities are
+ * encoded with the {@link EntityCodec}. Blocks that are not in ID order with 
+ * their predecessors start a new run. Freezing the map merges all runs into a
+ * new file with a single run, so that a lookup is a binary search in the 
+ * index and at most one block read. Lookups share the block cache, so 
+ * concurrent lookups are serialized.
  */
 public class DiskEntityMap<T extends Entity> implements EntityMap<T> {
-	// TODO: Find alternative to MapDB or implement own disk map, as it is 
-	// really slow with MapDB
+	private static final int BLOCK_ENTITIES = 256;
+	private static final int CACHED_BLOCKS = 256;
+
+	private String name;
+	private BlockFile blockFile;
+
+	// Current block
+	private List<T> pendingEntities = new ArrayList<T>();
 
-	private Map<Long, T> entities;
+	private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private Inflater inflater = new Inflater();
+	private Map<Integer, EntityCodec.Block> cachedBlocks = new LinkedHashMap<Integer, EntityCodec.Block>(CACHED_BLOCKS, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, EntityCodec.Block> eldest) {
+			return size() > CACHED_BLOCKS;
+		}
+	};
 
 	/**
-	 * @param db The MapDB database
-	 * @param name Unique identifier for this object
+	 * Creates the map in a new temporary file.
+	 * @param name Unique identifier for this object, used in the file name
 	 */
-	@SuppressWarnings("unchecked")
-	public DiskEntityMap(DB db, String name) {
-		entities = (Map<Long, T>)db.treeMap(name)
-				.keySerializer(Serializer.LONG)
-				.create();
+	public DiskEntityMap(String name) {
+		this.name = name;
+		blockFile = new BlockFile(name);
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public void add(T entity) {
-		entities.put(entity.getId(), entity);
+	public synchronized void add(T entity) {
+		try {
+			pendingEntities.add(entity);
+
+			// Write block
+			if(pendingEntities.size() >= BLOCK_ENTITIES) {
+				writeBlock();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to write entity file.", e);
+		}
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public T get(long id) {
-		return entities.get(id);
+	public synchronized T get(long id) {
+		try {
+			// The current block is searched in memory, the most recent 
+			// entities first
+			for(int i = pendingEntities.size() - 1; i >= 0; i--) {
+				if(pendingEntities.get(i).getId() == id) {
+					return pendingEntities.get(i);
+				}
+			}
+
+			// Search every run, the last run is the most likely one
+			for(int run = blockFile.getRunCount() - 1; run >= 0; run--) {
+				int block = blockFile.findBlock(run, id);
+				if(block != -1) {
+					T entity = findEntity(readBlock(block), id);
+					if(entity != null) {
+						return entity;
+					}
+				}
+			}
+			return null;
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to read entity file.", e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc} Writes the pending entities and merges the runs.
+	 */
+	@Override
+	public synchronized void freeze() {
+		try {
+			if(!pendingEntities.isEmpty()) {
+				writeBlock();
+			}
+			if(blockFile.getRunCount() > 1) {
+				mergeRuns();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to write entity file.", e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc} Deletes the temporary file.
+	 */
+	@Override
+	public void close() {
+		cachedBlocks.clear();
+		deflater.end();
+		inflater.end();
+		blockFile.close();
+	}
+
+	/**
+	 * @return The number of blocks in the file
+	 */
+	synchronized int getBlockCount() {
+		return blockFile.blockCount;
+	}
+
+	/**
+	 * @return The number of runs of blocks in ID order in the file
+	 */
+	synchronized int getRunCount() {
+		return blockFile.getRunCount();
+	}
+
+	/**
+	 * Sorts, compresses and appends the pending entities as a block.
+	 */
+	private void writeBlock() throws IOException {
+		// Sort block
+		boolean sorted = true;
+		for(int i = 1; i < pendingEntities.size(); i++) {
+			if(pendingEntities.get(i).getId() < pendingEntities.get(i - 1).getId()) {
+				sorted = false;
+				break;
+			}
+		}
+		if(!sorted) {
+			Collections.sort(pendingEntities, new Comparator<T>() {
+				public int compare(T t1, T t2) {
+					return Long.compare(t1.getId(), t2.getId());
+				}
+			});
+		}
+		byte[] data = EntityCodec.encode(pendingEntities);
+
+		// Compress
+		deflater.reset();
+		deflater.setInput(data);
+		deflater.finish();
+		byte[] compressed = new byte[Math.max(64, data.length + data.length / 100 + 64)];
+		int length = 0;
+		while(!deflater.finished()) {
+			if(length == compressed.length) {
+				compressed = Arrays.copyOf(compressed, compressed.length * 2);
+			}
+			length += deflater.deflate(compressed, length, compressed.length - length);
+		}
+
+		// Append to file
+		long minId = pendingEntities.get(0).getId();
+		long maxId = pendingEntities.get(pendingEntities.size() - 1).getId();
+		blockFile.append(compressed, length, data.length, minId, maxId);
+
+		// Start next block
+		pendingEntities.clear();
+	}
+
+	/**
+	 * Writes the entities of all runs in ID order to a new file, which then
+	 * replaces the current file. Of entities with the same ID only the one
+	 * of the last run is kept, which is the one that the lookups found.
+	 */
+	@SuppressWarnings("unchecked")
+	private void mergeRuns() throws IOException {
+		BlockFile runFile = blockFile;
+		blockFile = new BlockFile(name);
+		cachedBlocks.clear();
+		try {
+			// One cursor per run, ordered by the ID of its current entity
+			// and the later runs first
+			PriorityQueue<RunCursor> cursors = new PriorityQueue<RunCursor>(runFile.getRunCount(), 
+					new Comparator<RunCursor>() {
+						public int compare(RunCursor c1, RunCursor c2) {
+							int result = Long.compare(c1.getId(), c2.getId());
+							return result != 0 ? result : Integer.compare(c2.run, c1.run);
+						}
+					});
+			for(int run = 0; run < runFile.getRunCount(); run++) {
+				RunCursor cursor = new RunCursor(runFile, run);
+				if(cursor.next()) {
+					cursors.add(cursor);
+				}
+			}
+
+			// Merge
+			boolean first = true;
+			long lastId = 0;
+			while(!cursors.isEmpty()) {
+				RunCursor cursor = cursors.poll();
+				long id = cursor.getId();
+				if(first || id != lastId) {
+					pendingEntities.add((T)cursor.block.get(cursor.index));
+					if(pendingEntities.size() >= BLOCK_ENTITIES) {
+						writeBlock();
+					}
+					first = false;
+					lastId = id;
+				}
+				if(cursor.next()) {
+					cursors.add(cursor);
+				}
+			}
+			if(!pendingEntities.isEmpty()) {
+				writeBlock();
+			}
+		} finally {
+			runFile.close();
+		}
 	}
 
+	@SuppressWarnings("unchecked")
+	private T findEntity(EntityCodec.Block block, long id) {
+		int low = 0;
+		int high = block.size() - 1;
+		while(low <= high) {
+			int mid = (low + high) >>> 1;
+			long midId = block.getId(mid);
+			if(midId < id) {
+				low = mid + 1;
+			} else if(midId > id) {
+				high = mid - 1;
+			} else {
+				return (T)block.get(mid);
+			}
+		}
+		return null;
+	}
+
+	private EntityCodec.Block readBlock(int block) throws IOException {
+		EntityCodec.Block entityBlock = cachedBlocks.get(block);
+		if(entityBlock == null) {
+			entityBlock = decodeBlock(blockFile, block);
+			cachedBlocks.put(block, entityBlock);
+		}
+		return entityBlock;
+	}
+
+	private EntityCodec.Block decodeBlock(BlockFile blockFile, int block) throws IOException {
+		// Decompress
+		byte[] data = new byte[blockFile.getUncompressedLength(block)];
+		inflater.reset();
+		inflater.setInput(blockFile.read(block));
+		try {
+			int length = 0;
+			while(length < data.length) {
+				int inflated = inflater.inflate(data, length, data.length - length);
+				if(inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+					throw new IOException("Entity file block is incomplete.");
+				}
+				length += inflated;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Unable to decompress entity file block.", e);
+		}
+
+		// Entities are decoded on access
+		return EntityCodec.decode(data);
+	}
+
+	/**
+	 * Iterates over the entities of a run while the runs are merged.
+	 */
+	private class RunCursor {
+		private BlockFile runFile;
+		private int run;
+		private int nextBlock;
+		private int endBlock;
+		private EntityCodec.Block block;
+		private int index;
+
+		RunCursor(BlockFile runFile, int run) {
+			this.runFile = runFile;
+			this.run = run;
+			nextBlock = runFile.getFirstBlock(run);
+			endBlock = runFile.getFirstBlock(run + 1);
+		}
+
+		/**
+		 * Moves to the next entity of the run.
+		 * 
+		 * @return False if the run has no more entities
+		 */
+		boolean next() throws IOException {
+			index++;
+			while(block == null || index >= block.size()) {
+				if(nextBlock == endBlock) {
+					return false;
+				}
+				block = decodeBlock(runFile, nextBlock++);
+				index = 0;
+			}
+			return true;
+		}
+
+		long getId() {
+			return block.getId(index);
+		}
+	}
+
+	/**
+	 * The temporary file with the index of its blocks.
+	 */
+	private static class BlockFile {
+		private File file;
+		private RandomAccessFile randomAccessFile;
+		private FileChannel channel;
+		private long fileSize = 0;
+
+		private int blockCount = 0;
+		private long[] minIds = new long[16];
+		private long[] maxIds = new long[16];
+		private long[] offsets = new long[16];
+		private int[] lengths = new int[16];
+		private int[] uncompressedLengths = new int[16];
+		// The first block of every run
+		private List<Integer> runs = new ArrayList<Integer>();
+
+		BlockFile(String name) {
+			try {
+				file = File.createTempFile("osmonaut-" + name, ".tmp");
+				file.deleteOnExit();
+				randomAccessFile = new RandomAccessFile(file, "rw");
+				channel = randomAccessFile.getChannel();
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to create entity file.", e);
+			}
+		}
+
+		/**
+		 * Appends a compressed block and adds it to the index.
+		 */
+		void append(byte[] compressed, int length, int uncompressedLength, long minId, long maxId) 
+				throws IOException {
+			// Append to file
+			ByteBuffer buffer = ByteBuffer.wrap(compressed, 0, length);
+			while(buffer.hasRemaining()) {
+				channel.write(buffer, fileSize + buffer.position());
+			}
+
+			// Add to index
+			if(blockCount == minIds.length) {
+				int capacity = blockCount * 2;
+				minIds = Arrays.copyOf(minIds, capacity);
+				maxIds = Arrays.copyOf(maxIds, capacity);
+				offsets = Arrays.copyOf(offsets, capacity);
+				lengths = Arrays.copyOf(lengths, capacity);
+				uncompressedLengths = Arrays.copyOf(uncompressedLengths, capacity);
+			}
+			if(blockCount == 0 || minId <= maxIds[blockCount - 1]) {
+				runs.add(blockCount);
+			}
+			minIds[blockCount] = minId;
+			maxIds[blockCount] = maxId;
+			offsets[blockCount] = fileSize;
+			lengths[blockCount] = length;
+			uncompressedLengths[blockCount] = uncompressedLength;
+			blockCount++;
+			fileSize += length;
+		}
+
+		/**
+		 * @return The compressed data of the block
+		 */
+		byte[] read(int block) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(lengths[block]);
+			while(buffer.hasRemaining()) {
+				if(channel.read(buffer, offsets[block] + buffer.position()) < 0) {
+					throw new IOException("Unexpected end of entity file.");
+				}
+			}
+			return buffer.array();
+		}
+
+		int getUncompressedLength(int block) {
+			return uncompressedLengths[block];
+		}
+
+		int getRunCount() {
+			return runs.size();
+		}
+
+		/**
+		 * @return The first block of the run, or the number of blocks if 
+		 * there is no such run
+		 */
+		int getFirstBlock(int run) {
+			return run < runs.size() ? runs.get(run) : blockCount;
+		}
+
+		/**
+		 * @return The block of the run that may contain the ID, or -1 if 
+		 * there is none
+		 */
+		int findBlock(int run, long id) {
+			int low = getFirstBlock(run);
+			int high = getFirstBlock(run + 1) - 1;
+			while(low <= high) {
+				int mid = (low + high) >>> 1;
+				if(maxIds[mid] < id) {
+					low = mid + 1;
+				} else if(minIds[mid] > id) {
+					high = mid - 1;
+				} else {
+					return mid;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Deletes the file.
+		 */
+		void close() {
+			try {
+				channel.close();
+				randomAccessFile.close();
+			} catch (IOException e) {
+			}
+			file.delete();
+		}
+	}
 }
@@ -24,9 +24,8 @@ package net.morbz.osmonaut;
 * SOFTWARE.
 */
 
-import org.mapdb.DB;
-
 import net.morbz.osmonaut.osm.Entity;
+import net.morbz.osmonaut.osm.Node;
 
 /**
  * Holds the IDs for entities that are needed until provided with the full
@@ -35,32 +34,89 @@ import net.morbz.osmonaut.osm.Entity;
  * @author MorbZ
  */
 public class EntityCache<T extends Entity> {
-	private IdTracker idTracker = new IdTracker();
+	private IdSet idTracker;
 	private EntityMap<T> entityMap;
 
 	/**
 	 * @param entityMap The map to store the full entities
 	 */
 	public EntityCache(EntityMap<T> entityMap) {
+		this(entityMap, false);
+	}
+
+	/**
+	 * @param entityMap The map to store the full entities
+	 * @param concurrent Whether multiple threads may add and check needed IDs
+	 * at the same time
+	 */
+	public EntityCache(EntityMap<T> entityMap, boolean concurrent) {
 		this.entityMap = entityMap;
+		if(concurrent) {
+			idTracker = new ConcurrentIdTracker();
+		} else {
+			idTracker = new IdTracker();
+		}
 	}
 
 	/**
 	 * Factory method to create a memory based entity cache.
 	 */
 	public static <T extends Entity> EntityCache<T> getMemoryEntityCache() {
-		EntityMap<T> entityMap = new MemoryEntityMap<T>();
-		return new EntityCache<T>(entityMap);
+		return getMemoryEntityCache(false);
+	}
+
+	/**
+	 * Factory method to create a memory based entity cache.
+	 * @param concurrent Whether multiple threads may add and check needed IDs
+	 * and add entities at the same time
+	 */
+	public static <T extends Entity> EntityCache<T> getMemoryEntityCache(boolean concurrent) {
+		EntityMap<T> entityMap;
+		if(concurrent) {
+			entityMap = new ConcurrentEntityMap<T>();
+		} else {
+			entityMap = new MemoryEntityMap<T>();
+		}
+		return new EntityCache<T>(entityMap, concurrent);
+	}
+
+	/**
+	 * Factory method to create a memory based node cache that only stores 
+	 * the locations of the nodes, not their tags.
+	 * @param concurrent Whether multiple threads may add and check needed IDs
+	 * at the same time
+	 */
+	public static EntityCache<Node> getNodeLocationCache(boolean concurrent) {
+		return new EntityCache<Node>(new NodeLocationMap(), concurrent);
+	}
+
+	/**
+	 * Factory method to create a node cache that only stores the locations 
+	 * of the nodes in a memory mapped array indexed by node ID.
+	 * @param concurrent Whether multiple threads may add and check needed IDs
+	 * at the same time
+	 */
+	public static EntityCache<Node> getDenseNodeLocationCache(boolean concurrent) {
+		return new EntityCache<Node>(new DenseNodeLocationMap(), concurrent);
 	}
 
 	/**
 	 * Factory method to create a disk based entity cache.
-	 * @param db The MapDB database
 	 * @param name Unique identifier for this object
 	 */
-	public static <T extends Entity> EntityCache<T> getDiskEntityCache(DB db, String name) {
-		EntityMap<T> entityMap = new DiskEntityMap<T>(db, name);
-		return new EntityCache<T>(entityMap);
+	public static <T extends Entity> EntityCache<T> getDiskEntityCache(String name) {
+		return getDiskEntityCache(name, false);
+	}
+
+	/**
+	 * Factory method to create a disk based entity cache.
+	 * @param name Unique identifier for this object
+	 * @param concurrent Whether multiple threads may add and check needed IDs
+	 * at the same time
+	 */
+	public static <T extends Entity> EntityCache<T> getDiskEntityCache(String name, boolean concurrent) {
+		EntityMap<T> entityMap = new DiskEntityMap<T>(name);
+		return new EntityCache<T>(entityMap, concurrent);
 	}
 
 	/**
@@ -105,6 +161,28 @@ public class EntityCache<T extends Entity> {
 		return entityMap.get(id);
 	}
 
+	/**
+	 * Ends the fill phase. Afterwards no entities may be added, and the 
+	 * entities may be read by multiple threads at the same time.
+	 */
+	public void freeze() {
+		entityMap.freeze();
+	}
+
+	/**
+	 * Frees the stored entities.
+	 */
+	public void close() {
+		entityMap.close();
+	}
+
+	/**
+	 * @return true if multiple threads may add entities at the same time
+	 */
+	public boolean isConcurrent() {
+		return entityMap instanceof ConcurrentEntityMap;
+	}
+
 	/**
 	 * @return true if there is at least one needed entity
 	 */
@@ -0,0 +1,502 @@
+package net.morbz.osmonaut;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.morbz.osmonaut.osm.Entity;
+import net.morbz.osmonaut.osm.EntityType;
+import net.morbz.osmonaut.osm.LatLon;
+import net.morbz.osmonaut.osm.Node;
+import net.morbz.osmonaut.osm.Relation;
+import net.morbz.osmonaut.osm.RelationMember;
+import net.morbz.osmonaut.osm.Tags;
+import net.morbz.osmonaut.osm.Way;
+
+/**
+ * A compact binary format for blocks of entities. Numbers are stored as 
+ * varints, IDs and coordinates are delta coded and all strings of a block 
+ * (tag keys, tag values and roles) are stored once in a dictionary. A block
+ * holds an index of the entity IDs, so single entities can be decoded 
+ * without decoding the whole block.
+ * 
+ * Block layout:
+ * 
+ * <pre>
+ * strings:  count, (length, UTF-8 bytes)*
+ * index:    count, (ID delta, body length)*
+ * bodies:   (type, tags, type specific data)*
+ * </pre>
+ */
+public class EntityCodec {
+	// Location formats
+	private static final int NO_LOCATION = 0;
+	private static final int FIXED_LOCATION = 1;
+	private static final int RAW_LOCATION = 2;
+
+	private static final EntityType[] types = EntityType.values();
+
+	private Map<String, Integer> stringIndexes = new HashMap<String, Integer>();
+	private List<String> strings = new ArrayList<String>();
+	private Output bodies = new Output();
+
+	// Coordinates are delta coded within each top level entity
+	private long lastLat, lastLon;
+
+	private EntityCodec() {
+
+	}
+
+	/**
+	 * Encodes the entities as a block.
+	 * 
+	 * @param entities
+	 *            The entities to encode
+	 * @return The encoded block
+	 */
+	public static byte[] encode(List<? extends Entity> entities) {
+		return new EntityCodec().encodeBlock(entities);
+	}
+
+	/**
+	 * Decodes the index and the dictionary of a block. The entities are 
+	 * decoded on access.
+	 * 
+	 * @param data
+	 *            The encoded block
+	 * @return The decoded block
+	 */
+	public static Block decode(byte[] data) {
+		return new Block(data);
+	}
+
+	private byte[] encodeBlock(List<? extends Entity> entities) {
+		// Encode bodies
+		int[] bodyLengths = new int[entities.size()];
+		for(int i = 0; i < entities.size(); i++) {
+			int start = bodies.size();
+			lastLat = 0;
+			lastLon = 0;
+			Entity entity = entities.get(i);
+			bodies.writeVarint(entity.getEntityType().ordinal());
+			writeBody(entity);
+			bodyLengths[i] = bodies.size() - start;
+		}
+
+		// Dictionary
+		Output out = new Output();
+		out.writeVarint(strings.size());
+		for(String str : strings) {
+			byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+			out.writeVarint(bytes.length);
+			out.write(bytes, 0, bytes.length);
+		}
+
+		// Index
+		out.writeVarint(entities.size());
+		long lastId = 0;
+		for(int i = 0; i < entities.size(); i++) {
+			long id = entities.get(i).getId();
+			out.writeSignedVarint(id - lastId);
+			out.writeVarint(bodyLengths[i]);
+			lastId = id;
+		}
+
+		// Bodies
+		out.write(bodies.buffer, 0, bodies.size());
+		return out.toByteArray();
+	}
+
+	private void writeBody(Entity entity) {
+		writeTags(entity.getTags());
+		switch(entity.getEntityType()) {
+		case NODE:
+			writeLocation(((Node)entity).getLatlon());
+			break;
+		case WAY:
+			writeWay((Way)entity);
+			break;
+		case RELATION:
+			writeRelation((Relation)entity);
+			break;
+		}
+	}
+
+	private void writeTags(Tags tags) {
+		bodies.writeVarint(tags.size());
+		for(String key : tags) {
+			writeString(key);
+			writeString(tags.get(key));
+		}
+	}
+
+	private void writeLocation(LatLon latlon) {
+		if(latlon == null) {
+			bodies.writeVarint(NO_LOCATION);
+			return;
+		}
+
+		// Coordinates from PBF files are multiples of 100 nanodegrees, 
+		// anything else is stored as is
+		long lat = Math.round(latlon.getLat() * 10_000_000);
+		long lon = Math.round(latlon.getLon() * 10_000_000);
+		if(toCoordinate(lat) == latlon.getLat() && toCoordinate(lon) == latlon.getLon()) {
+			bodies.writeVarint(FIXED_LOCATION);
+			bodies.writeSignedVarint(lat - lastLat);
+			bodies.writeSignedVarint(lon - lastLon);
+			lastLat = lat;
+			lastLon = lon;
+		} else {
+			bodies.writeVarint(RAW_LOCATION);
+			bodies.writeLong(Double.doubleToLongBits(latlon.getLat()));
+			bodies.writeLong(Double.doubleToLongBits(latlon.getLon()));
+		}
+	}
+
+	private void writeWay(Way way) {
+		List<Node> nodes = way.getNodes();
+		if(nodes == null) {
+			bodies.writeVarint(0);
+			return;
+		}
+
+		bodies.writeVarint(nodes.size() + 1);
+		long lastId = way.getId();
+		for(Node node : nodes) {
+			bodies.writeSignedVarint(node.getId() - lastId);
+			writeBody(node);
+			lastId = node.getId();
+		}
+	}
+
+	private void writeRelation(Relation relation) {
+		bodies.writeVarint(relation.isIncomplete() ? 1 : 0);
+		List<RelationMember> members = relation.getMembers();
+		if(members == null) {
+			bodies.writeVarint(0);
+			return;
+		}
+
+		bodies.writeVarint(members.size() + 1);
+		long lastId = relation.getId();
+		for(RelationMember member : members) {
+			Entity entity = member.getEntity();
+			bodies.writeVarint(entity.getEntityType().ordinal());
+			writeString(member.getRole());
+			bodies.writeSignedVarint(entity.getId() - lastId);
+			writeBody(entity);
+			lastId = entity.getId();
+		}
+	}
+
+	private void writeString(String str) {
+		// 0 is reserved for null
+		if(str == null) {
+			bodies.writeVarint(0);
+			return;
+		}
+
+		Integer index = stringIndexes.get(str);
+		if(index == null) {
+			index = strings.size();
+			stringIndexes.put(str, index);
+			strings.add(str);
+		}
+		bodies.writeVarint(index + 1);
+	}
+
+	private static double toCoordinate(long value) {
+		// The same calculation as in the PBF decoder, so that the decoded 
+		// coordinates are equal to the original ones
+		return 0.000000001 * (100L * value);
+	}
+
+	/**
+	 * A decoded block. Entities are decoded on first access and then kept.
+	 */
+	public static class Block {
+		private byte[] data;
+		private int[] stringOffsets;
+		private String[] strings;
+		private long[] ids;
+		private int[] bodyOffsets;
+		private Entity[] entities;
+
+		private Block(byte[] data) {
+			this.data = data;
+			Input in = new Input(data, 0);
+
+			// Dictionary
+			int stringCount = in.readInt();
+			stringOffsets = new int[stringCount];
+			strings = new String[stringCount];
+			for(int i = 0; i < stringCount; i++) {
+				stringOffsets[i] = in.position;
+				int length = in.readInt();
+				in.position += length;
+			}
+
+			// Index
+			int entityCount = in.readInt();
+			ids = new long[entityCount];
+			bodyOffsets = new int[entityCount];
+			entities = new Entity[entityCount];
+			long id = 0;
+			int bodyOffset = 0;
+			for(int i = 0; i < entityCount; i++) {
+				id += in.readSignedVarint();
+				ids[i] = id;
+				bodyOffsets[i] = bodyOffset;
+				bodyOffset += in.readInt();
+			}
+			for(int i = 0; i < entityCount; i++) {
+				bodyOffsets[i] += in.position;
+			}
+		}
+
+		/**
+		 * @return The number of entities in this block
+		 */
+		public int size() {
+			return ids.length;
+		}
+
+		/**
+		 * @param index
+		 *            The position of the entity in this block
+		 * @return The ID of the entity
+		 */
+		public long getId(int index) {
+			return ids[index];
+		}
+
+		/**
+		 * @param index
+		 *            The position of the entity in this block
+		 * @return The entity
+		 */
+		public Entity get(int index) {
+			Entity entity = entities[index];
+			if(entity == null) {
+				Input in = new Input(data, bodyOffsets[index]);
+				EntityType type = types[in.readInt()];
+				entity = readBody(in, type, ids[index]);
+				entities[index] = entity;
+			}
+			return entity;
+		}
+
+		private Entity readBody(Input in, EntityType type, long id) {
+			Tags tags = readTags(in);
+			switch(type) {
+			case NODE:
+				return new Node(id, tags, readLocation(in));
+			case WAY:
+				return new Way(id, tags, readNodes(in, id));
+			case RELATION:
+				boolean isIncomplete = in.readInt() == 1;
+				return new Relation(id, tags, readMembers(in, id), isIncomplete);
+			}
+			throw new RuntimeException("Unknown entity type " + type + ".");
+		}
+
+		private Tags readTags(Input in) {
+			int count = in.readInt();
+			if(count == 0) {
+				return null;
+			}
+
+			Tags tags = new Tags();
+			for(int i = 0; i < count; i++) {
+				String key = readString(in);
+				tags.set(key, readString(in));
+			}
+			return tags;
+		}
+
+		private LatLon readLocation(Input in) {
+			switch(in.readInt()) {
+			case NO_LOCATION:
+				return null;
+			case FIXED_LOCATION:
+				in.lastLat += in.readSignedVarint();
+				in.lastLon += in.readSignedVarint();
+				return new LatLon(toCoordinate(in.lastLat), toCoordinate(in.lastLon));
+			case RAW_LOCATION:
+				double lat = Double.longBitsToDouble(in.readLong());
+				return new LatLon(lat, Double.longBitsToDouble(in.readLong()));
+			}
+			throw new RuntimeException("Unknown location format.");
+		}
+
+		private List<Node> readNodes(Input in, long wayId) {
+			int count = in.readInt() - 1;
+			if(count < 0) {
+				return null;
+			}
+
+			List<Node> nodes = new ArrayList<Node>(count);
+			long id = wayId;
+			for(int i = 0; i < count; i++) {
+				id += in.readSignedVarint();
+				nodes.add((Node)readBody(in, EntityType.NODE, id));
+			}
+			return nodes;
+		}
+
+		private List<RelationMember> readMembers(Input in, long relationId) {
+			int count = in.readInt() - 1;
+			if(count < 0) {
+				return null;
+			}
+
+			List<RelationMember> members = new ArrayList<RelationMember>(count);
+			long id = relationId;
+			for(int i = 0; i < count; i++) {
+				EntityType type = types[in.readInt()];
+				String role = readString(in);
+				id += in.readSignedVarint();
+				members.add(new RelationMember(readBody(in, type, id), role));
+			}
+			return members;
+		}
+
+		private String readString(Input in) {
+			int index = in.readInt() - 1;
+			if(index < 0) {
+				return null;
+			}
+
+			String str = strings[index];
+			if(str == null) {
+				Input stringIn = new Input(data, stringOffsets[index]);
+				int length = stringIn.readInt();
+				str = new String(data, stringIn.position, length, StandardCharsets.UTF_8);
+				strings[index] = str;
+			}
+			return str;
+		}
+	}
+
+	/**
+	 * A growable byte buffer with varint encoding.
+	 */
+	private static class Output {
+		private byte[] buffer = new byte[256];
+		private int size = 0;
+
+		public int size() {
+			return size;
+		}
+
+		public void writeVarint(long value) {
+			ensureCapacity(10);
+			while((value & ~0x7FL) != 0) {
+				buffer[size++] = (byte)((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buffer[size++] = (byte)value;
+		}
+
+		public void writeSignedVarint(long value) {
+			// Zigzag encoding, so that small negative values stay small
+			writeVarint((value << 1) ^ (value >> 63));
+		}
+
+		public void writeLong(long value) {
+			ensureCapacity(8);
+			for(int i = 0; i < 8; i++) {
+				buffer[size++] = (byte)(value >>> (i * 8));
+			}
+		}
+
+		public void write(byte[] bytes, int offset, int length) {
+			ensureCapacity(length);
+			System.arraycopy(bytes, offset, buffer, size, length);
+			size += length;
+		}
+
+		public byte[] toByteArray() {
+			return Arrays.copyOf(buffer, size);
+		}
+
+		private void ensureCapacity(int length) {
+			if(size + length > buffer.length) {
+				buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
+			}
+		}
+	}
+
+	/**
+	 * Reads varints from a byte array.
+	 */
+	private static class Input {
+		private byte[] data;
+		private int position;
+
+		// Coordinates are delta coded within each top level entity
+		private long lastLat, lastLon;
+
+		public Input(byte[] data, int position) {
+			this.data = data;
+			this.position = position;
+		}
+
+		public long readVarint() {
+			long value = 0;
+			for(int shift = 0; shift < 64; shift += 7) {
+				byte b = data[position++];
+				value |= (long)(b & 0x7F) << shift;
+				if((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new RuntimeException("Malformed varint in entity block.");
+		}
+
+		public int readInt() {
+			return (int)readVarint();
+		}
+
+		public long readSignedVarint() {
+			long value = readVarint();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		public long readLong() {
+			long value = 0;
+			for(int i = 0; i < 8; i++) {
+				value |= (long)(data[position++] & 0xFF) << (i * 8);
+			}
+			return value;
+		}
+	}
+}
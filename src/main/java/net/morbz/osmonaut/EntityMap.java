@@ -43,4 +43,15 @@ public interface EntityMap<T extends Entity> {
 	 * present
 	 */
 	public T get(long id);
+
+	/**
+	 * Ends the fill phase. Afterwards no entities may be added, and get() may
+	 * be called by multiple threads at the same time.
+	 */
+	public void freeze();
+
+	/**
+	 * Frees the resources of the map. The map can't be used afterwards.
+	 */
+	public void close();
 }
@@ -0,0 +1,58 @@
+package net.morbz.osmonaut;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+/**
+ * A set of entity IDs, e.g. of the entities that are needed.
+ */
+public interface IdSet {
+	/**
+	 * Marks the entity with the given ID as needed.
+	 * @param id The needed ID
+	 */
+	public void set(long id);
+
+	/**
+	 * @param id The entity ID
+	 * @return true if the entity with ID is needed
+	 */
+	public boolean get(long id);
+
+	/**
+	 * Marks the entity with this ID as not needed anymore.
+	 * @param id The entity ID
+	 */
+	public void unset(long id);
+
+	/**
+	 * @return true if there are no needed entities
+	 */
+	public boolean isEmpty();
+
+	/**
+	 * @return The number of needed entities
+	 */
+	public long size();
+}
@@ -24,118 +24,478 @@ package net.morbz.osmonaut;
 * SOFTWARE.
 */
 
-import java.util.ArrayList;
-import java.util.BitSet;
-import java.util.List;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
- * Keeps track of which IDs are needed. Uses chunks of BitSet for storing IDs.
- * Every ID requires at least 1 bit of memory + BitSet overhead. Doesn't 
- * support negative ID values.
+ * Keeps track of which IDs are needed. The IDs are split into chunks of 65536
+ * IDs, and each chunk stores its IDs in the most compact of three containers:
+ * A sorted array for sparse chunks, a bitmap for dense chunks and a list of
+ * runs for chunks with consecutive IDs. So the memory usage depends on the
+ * number of needed IDs rather than on their range. Negative IDs are stored
+ * in a separate directory, and IDs with an absolute value of 2^36 and more in
+ * a hash map, so that the whole range of 64-bit IDs can be used.
+ * 
+ * Not thread-safe, see ConcurrentIdTracker.
  */
-public class IdTracker {
-	/* TODO: Can be optimized to use 20-30% less RAM if long-arrays are used
-	 * instead of BitSet */
-	private List<BitSet> segments = new ArrayList<BitSet>();
-	private static final int idsPerSegment = 512; // Should be a multiple of 64
+public class IdTracker implements IdSet {
+	private static final int CHUNK_SHIFT = 16;
+	private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+	// Array containers become bitmaps above this size, where they need more
+	// memory than the 8 KB of a bitmap
+	private static final int ARRAY_MAX_SIZE = 4096;
+	// Bitmaps become arrays again at half the size, so that alternately 
+	// setting and unsetting an ID doesn't convert the container every time
+	private static final int BITMAP_MIN_SIZE = ARRAY_MAX_SIZE / 2;
+	private static final int BITMAP_WORDS = 1 << (CHUNK_SHIFT - 6);
+	// The directories hold the chunks of IDs below 2^36, so that they need 
+	// at most 8 MB
+	private static final int MAX_DIRECTORY_SIZE = 1 << 20;
+
+	private Container[] chunks = new Container[0];
+	// Negative IDs are stored by their complement, i.e. -1 becomes 0
+	private Container[] negativeChunks = new Container[0];
+	// Chunks of IDs from 2^36 up, keyed by the ID shifted by the chunk bits
+	private Map<Long, Container> sparseChunks = new HashMap<Long, Container>();
+	private long cardinality = 0;
 
 	/**
-	 * Marks the entity with the given ID as needed.
-	 * @param id The needed ID
+	 * {@inheritDoc}
 	 */
+	@Override
 	public void set(long id) {
-		// Grow array
-		int segmentId = getSegmentId(id);
-		while(!arraySpaceAllocated(segmentId))  {
-			segments.add(null);
+		Container chunk = getChunk(id);
+		int value = getValue(id);
+		if(chunk == null) {
+			chunk = new ArrayContainer();
+		} else if(chunk.contains(value)) {
+			return;
 		}
+		setChunk(id, chunk.add(value));
+		cardinality++;
+	}
 
-		// Get/create segment
-		BitSet segment = segments.get(segmentId);
-		if(segment == null) {
-			segment = new BitSet(idsPerSegment);
-			segments.set(segmentId, segment);
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean get(long id) {
+		Container chunk = getChunk(id);
+		if(chunk == null) {
+			return false;
 		}
+		return chunk.contains(getValue(id));
+	}
 
-		// Set bit
-		int segmentPosition = getSegmentPosition(id);
-		segment.set(segmentPosition);	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void unset(long id) {
+		Container chunk = getChunk(id);
+		int value = getValue(id);
+		if(chunk == null || !chunk.contains(value)) {
+			return;
+		}
+		setChunk(id, chunk.remove(value));
+		cardinality--;
 	}
 
 	/**
-	 * @param id The entity ID
-	 * @return true if the entity with ID is needed
+	 * {@inheritDoc}
 	 */
-	public boolean get(long id) {
-		// Check array size
-		int segmentId = getSegmentId(id);
-		if(!arraySpaceAllocated(segmentId))  {
-			return false;
+	@Override
+	public boolean isEmpty() {
+		return cardinality == 0;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long size() {
+		return cardinality;
+	}
+
+	private Container getChunk(long id) {
+		long chunkId = getIndex(id) >>> CHUNK_SHIFT;
+		if(chunkId >= MAX_DIRECTORY_SIZE) {
+			return sparseChunks.get(id >> CHUNK_SHIFT);
 		}
+		Container[] chunks = id < 0 ? negativeChunks : this.chunks;
+		if(chunkId >= chunks.length) {
+			return null;
+		}
+		return chunks[(int)chunkId];
+	}
 
-		// Get segment
-		BitSet segment = segments.get(segmentId);
-		if(segment == null) {
-			return false;
+	/**
+	 * @param id An ID of the chunk
+	 * @param chunk The new container of the chunk or null if it is empty
+	 */
+	private void setChunk(long id, Container chunk) {
+		long chunkId = getIndex(id) >>> CHUNK_SHIFT;
+		if(chunkId >= MAX_DIRECTORY_SIZE) {
+			if(chunk == null) {
+				sparseChunks.remove(id >> CHUNK_SHIFT);
+			} else {
+				sparseChunks.put(id >> CHUNK_SHIFT, chunk);
+			}
+			return;
 		}
 
-		// Get bit
-		int segmentPosition = getSegmentPosition(id);
-		return segment.get(segmentPosition);
+		// Grow directory
+		Container[] chunks = id < 0 ? negativeChunks : this.chunks;
+		if(chunkId >= chunks.length) {
+			chunks = Arrays.copyOf(chunks, (int)Math.max(chunkId + 1, chunks.length * 2));
+			if(id < 0) {
+				negativeChunks = chunks;
+			} else {
+				this.chunks = chunks;
+			}
+		}
+		chunks[(int)chunkId] = chunk;
 	}
 
 	/**
-	 * Marks the entity with this ID as not needed anymore.
 	 * @param id The entity ID
+	 * @return The ID without sign, negative IDs are complemented
 	 */
-	public void unset(long id) {
-		// Check array size
-		int segmentId = getSegmentId(id);
-		if(!arraySpaceAllocated(segmentId))  {
-			return;
+	private static long getIndex(long id) {
+		return id < 0 ? ~id : id;
+	}
+
+	private static int getValue(long id) {
+		return (int)getIndex(id) & CHUNK_MASK;
+	}
+
+	/**
+	 * The IDs of a chunk. The values are the lower 16 bits of the IDs. The 
+	 * add and remove methods return the container that holds the values 
+	 * afterwards.
+	 */
+	private static abstract class Container {
+		abstract boolean contains(int value);
+
+		/**
+		 * @param value A value that isn't contained yet
+		 */
+		abstract Container add(int value);
+
+		/**
+		 * @param value A contained value
+		 * @return The new container or null if it is empty
+		 */
+		abstract Container remove(int value);
+	}
+
+	/**
+	 * Stores the values as a sorted array.
+	 */
+	private static class ArrayContainer extends Container {
+		private char[] values;
+		private int size;
+
+		ArrayContainer() {
+			values = new char[4];
 		}
 
-		// Get segment
-		BitSet segment = segments.get(segmentId);
-		if(segment == null) {
-			return;
+		ArrayContainer(char[] values, int size) {
+			this.values = values;
+			this.size = size;
+		}
+
+		@Override
+		boolean contains(int value) {
+			return Arrays.binarySearch(values, 0, size, (char)value) >= 0;
+		}
+
+		@Override
+		Container add(int value) {
+			if(size == ARRAY_MAX_SIZE) {
+				return new BitmapContainer(this).add(value);
+			}
+
+			// Grow array. Consecutive values are stored as runs instead.
+			if(size == values.length) {
+				int runs = countRuns();
+				if(runs * 2 < size) {
+					return new RunContainer(this, runs).add(value);
+				}
+				values = Arrays.copyOf(values, Math.min(size * 2, ARRAY_MAX_SIZE));
+			}
+
+			// Insert
+			int index = -Arrays.binarySearch(values, 0, size, (char)value) - 1;
+			System.arraycopy(values, index, values, index + 1, size - index);
+			values[index] = (char)value;
+			size++;
+			return this;
 		}
 
-		// Unset bit
-		int segmentPosition = getSegmentPosition(id);
-		segment.clear(segmentPosition);
+		@Override
+		Container remove(int value) {
+			if(size == 1) {
+				return null;
+			}
 
-		// Remove segment if empty
-		if(segment.isEmpty()) {
-			segments.set(segmentId, null);
+			int index = Arrays.binarySearch(values, 0, size, (char)value);
+			System.arraycopy(values, index + 1, values, index, size - index - 1);
+			size--;
+			return this;
+		}
+
+		private int countRuns() {
+			int runs = 0;
+			for(int i = 0; i < size; i++) {
+				if(i == 0 || values[i] != values[i - 1] + 1) {
+					runs++;
+				}
+			}
+			return runs;
 		}
 	}
 
 	/**
-	 * @return true if there are no needed entities
+	 * Stores the values as bits of a 8 KB bitmap.
 	 */
-	public boolean isEmpty() {
-		// Iterate through all segments
-		for(BitSet segment : segments) {
-			if(segment == null) {
-				continue;
+	private static class BitmapContainer extends Container {
+		private long[] words = new long[BITMAP_WORDS];
+		private int size;
+
+		BitmapContainer(ArrayContainer array) {
+			for(int i = 0; i < array.size; i++) {
+				int value = array.values[i];
+				words[value >>> 6] |= 1L << value;
 			}
-			if(!segment.isEmpty()) {
-				return false;
+			size = array.size;
+		}
+
+		@Override
+		boolean contains(int value) {
+			return (words[value >>> 6] & (1L << value)) != 0;
+		}
+
+		@Override
+		Container add(int value) {
+			words[value >>> 6] |= 1L << value;
+			size++;
+
+			// A bitmap of consecutive values is stored as runs instead
+			if(size % ARRAY_MAX_SIZE == 0) {
+				int runs = countRuns();
+				if(runs * 4 < BITMAP_WORDS * 8 / 2) {
+					return new RunContainer(this, runs);
+				}
 			}
+			return this;
 		}
-		return true;
-	}
 
-	private int getSegmentId(long id) {
-		return (int)(id / idsPerSegment);
-	}
+		@Override
+		Container remove(int value) {
+			// Clearing a bit doesn't affect the other values
+			words[value >>> 6] &= ~(1L << value);
+			size--;
+			if(size <= BITMAP_MIN_SIZE) {
+				return toArray();
+			}
+			return this;
+		}
 
-	private int getSegmentPosition(long id) {
-		return (int)(id % idsPerSegment);
+		private ArrayContainer toArray() {
+			if(size == 0) {
+				return null;
+			}
+			char[] values = new char[size];
+			int count = 0;
+			for(int i = 0; i < words.length; i++) {
+				long word = words[i];
+				while(word != 0) {
+					values[count++] = (char)((i << 6) + Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			return new ArrayContainer(values, size);
+		}
+
+		private int countRuns() {
+			int runs = 0;
+			long previousWord = 0;
+			for(long word : words) {
+				// Count the starts of runs, i.e. set bits with an unset bit 
+				// before them
+				long previousBits = (word << 1) | (previousWord >>> 63);
+				runs += Long.bitCount(word & ~previousBits);
+				previousWord = word;
+			}
+			return runs;
+		}
 	}
 
-	private boolean arraySpaceAllocated(int segmentId) {
-		return segments.size() >= segmentId + 1;
+	/**
+	 * Stores the values as runs of consecutive values. Each run is stored as
+	 * its first value and its length minus 1.
+	 */
+	private static class RunContainer extends Container {
+		private char[] starts;
+		private char[] lengths;
+		private int runCount;
+		private int size;
+
+		RunContainer(ArrayContainer array, int runs) {
+			starts = new char[Math.max(runs, 4)];
+			lengths = new char[starts.length];
+			for(int i = 0; i < array.size; i++) {
+				appendValue(array.values[i]);
+			}
+		}
+
+		RunContainer(BitmapContainer bitmap, int runs) {
+			starts = new char[Math.max(runs, 4)];
+			lengths = new char[starts.length];
+			for(int i = 0; i < bitmap.words.length; i++) {
+				long word = bitmap.words[i];
+				while(word != 0) {
+					appendValue((i << 6) + Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+		}
+
+		/**
+		 * Appends a value that is larger than all values.
+		 */
+		private void appendValue(int value) {
+			if(runCount > 0 && value == getEnd(runCount - 1) + 1) {
+				lengths[runCount - 1]++;
+			} else {
+				starts[runCount] = (char)value;
+				lengths[runCount] = 0;
+				runCount++;
+			}
+			size++;
+		}
+
+		private int getEnd(int run) {
+			return starts[run] + lengths[run];
+		}
+
+		/**
+		 * @return The index of the last run that starts at or before the 
+		 * value, or -1 if there is none
+		 */
+		private int findRun(int value) {
+			int index = Arrays.binarySearch(starts, 0, runCount, (char)value);
+			if(index >= 0) {
+				return index;
+			}
+			return -index - 2;
+		}
+
+		@Override
+		boolean contains(int value) {
+			int run = findRun(value);
+			return run >= 0 && value <= getEnd(run);
+		}
+
+		@Override
+		Container add(int value) {
+			int run = findRun(value);
+			size++;
+
+			// Extend the previous or the next run
+			boolean extendsPrevious = run >= 0 && value == getEnd(run) + 1;
+			boolean extendsNext = run + 1 < runCount && value + 1 == starts[run + 1];
+			if(extendsPrevious && extendsNext) {
+				// Merge the runs
+				lengths[run] = (char)(getEnd(run + 1) - starts[run]);
+				System.arraycopy(starts, run + 2, starts, run + 1, runCount - run - 2);
+				System.arraycopy(lengths, run + 2, lengths, run + 1, runCount - run - 2);
+				runCount--;
+				return this;
+			}
+			if(extendsPrevious) {
+				lengths[run]++;
+				return this;
+			}
+			if(extendsNext) {
+				starts[run + 1]--;
+				lengths[run + 1]++;
+				return this;
+			}
+
+			// Too many runs are stored as a bitmap instead
+			if(runCount == starts.length) {
+				if(runCount * 4 >= BITMAP_WORDS * 8) {
+					size--;
+					return toBitmap().add(value);
+				}
+				starts = Arrays.copyOf(starts, runCount * 2);
+				lengths = Arrays.copyOf(lengths, runCount * 2);
+			}
+
+			// Insert new run
+			int index = run + 1;
+			System.arraycopy(starts, index, starts, index + 1, runCount - index);
+			System.arraycopy(lengths, index, lengths, index + 1, runCount - index);
+			starts[index] = (char)value;
+			lengths[index] = 0;
+			runCount++;
+			return this;
+		}
+
+		@Override
+		Container remove(int value) {
+			if(size == 1) {
+				return null;
+			}
+
+			int run = findRun(value);
+			int start = starts[run];
+			int end = getEnd(run);
+			size--;
+
+			// Shorten or drop the run
+			if(start == end) {
+				System.arraycopy(starts, run + 1, starts, run, runCount - run - 1);
+				System.arraycopy(lengths, run + 1, lengths, run, runCount - run - 1);
+				runCount--;
+				return this;
+			}
+			if(value == start) {
+				starts[run]++;
+				lengths[run]--;
+				return this;
+			}
+			if(value == end) {
+				lengths[run]--;
+				return this;
+			}
+
+			// Split the run
+			if(runCount == starts.length) {
+				starts = Arrays.copyOf(starts, runCount * 2);
+				lengths = Arrays.copyOf(lengths, runCount * 2);
+			}
+			System.arraycopy(starts, run + 1, starts, run + 2, runCount - run - 1);
+			System.arraycopy(lengths, run + 1, lengths, run + 2, runCount - run - 1);
+			lengths[run] = (char)(value - 1 - start);
+			starts[run + 1] = (char)(value + 1);
+			lengths[run + 1] = (char)(end - value - 1);
+			runCount++;
+			return this;
+		}
+
+		private BitmapContainer toBitmap() {
+			char[] values = new char[size];
+			int count = 0;
+			for(int i = 0; i < runCount; i++) {
+				for(int value = starts[i]; value <= getEnd(i); value++) {
+					values[count++] = (char)value;
+				}
+			}
+			return new BitmapContainer(new ArrayContainer(values, size));
+		}
 	}
 }
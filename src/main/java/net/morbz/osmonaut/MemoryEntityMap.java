@@ -24,111 +24,89 @@ package net.morbz.osmonaut;
 * SOFTWARE.
 */
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
+import java.util.Arrays;
 
 import net.morbz.osmonaut.osm.Entity;
 
 /**
  * Uses heap to store entities. As fast as TLongObjectHashMap but has a far 
  * lower memory usage. Uses bucket arrays and does a binary search to find
- * entities. Does not support duplicate handling.
+ * entities. The ID offsets of each bucket are kept in a primitive array next
+ * to the entities, see SortedBuckets. Does not support duplicate handling.
  */
 public class MemoryEntityMap<T extends Entity> implements EntityMap<T> {
-	private List<List<T>> buckets = new ArrayList<List<T>>();
-	private boolean sorted = true;
-
-	private static final int entitiesPerBucket = 1_000_000;
+	private SortedBuckets<EntityBucket> buckets = new SortedBuckets<EntityBucket>() {
+		@Override
+		protected EntityBucket createBucket() {
+			return new EntityBucket();
+		}
+	};
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
 	public void add(T entity) {
-		// Grow array
-		int bucketId = getBucketId(entity.getId());
-		while(!arraySpaceAllocated(bucketId)) {
-			buckets.add(null);
-		}
-
-		// Get/create bucket
-		List<T> bucket = buckets.get(bucketId);
-		if(bucket == null) {
-			bucket = new ArrayList<T>();
-			buckets.set(bucketId, bucket);
-		}
-
-		// Add entity
-		bucket.add(entity);
-		sorted = false;
+		long id = entity.getId();
+		EntityBucket bucket = buckets.getBucket(id, true);
+		int position = bucket.append(SortedBuckets.getOffset(id));
+		bucket.entities[position] = entity;
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
+	@SuppressWarnings("unchecked")
 	@Override
 	public T get(long id) {
-		// Ensure that arrays are sorted
-		if(!sorted) {
-			sort();
-			sorted = true;
-		}
-
-		// Check array size
-		int bucketId = getBucketId(id);
-		if(!arraySpaceAllocated(bucketId)) {
-			return null;
-		}
-
-		// Get bucket
-		List<T> bucket = buckets.get(bucketId);
+		EntityBucket bucket = buckets.getBucket(id, false);
 		if(bucket == null) {
 			return null;
 		}
 
 		// Binary search for entity
-		int low = 0;
-		int high = bucket.size() - 1;
-		while(low <= high) {
-			int mid = (low + high) >>> 1;
-			long midId = bucket.get(mid).getId();
-
-			if(midId < id)
-				low = mid + 1;
-			else if(midId > id)
-				high = mid - 1;
-			else {
-				return bucket.get(mid);
-			}
+		int index = bucket.indexOf(SortedBuckets.getOffset(id));
+		if(index < 0) {
+			return null;
 		}
-		return null;
+		return (T)bucket.entities[index];
 	}
 
-	private void sort() {
-		// Create comparator
-		Comparator<T> comp = new Comparator<T>() {
-			public int compare(T t1, T t2) {
-				return Long.compare(t1.getId(), t2.getId());
-			}
-		};
+	/**
+	 * The entities of a bucket.
+	 */
+	private static class EntityBucket extends SortedBuckets.Bucket {
+		private Object[] entities = new Object[16];
 
-		// Sort all buckets
-		for(List<T> bucket : buckets) {
-			if(bucket == null) {
-				continue;
-			}
+		@Override
+		protected void grow(int capacity) {
+			entities = Arrays.copyOf(entities, capacity);
+		}
 
-			Collections.sort(bucket, comp);
+		@Override
+		protected void reorder(int[] positions, int size) {
+			Object[] sortedEntities = new Object[entities.length];
+			for(int i = 0; i < size; i++) {
+				sortedEntities[i] = entities[positions[i]];
+			}
+			entities = sortedEntities;
 		}
 	}
 
-	private int getBucketId(long id) {
-		return (int)(id / entitiesPerBucket);
+	/**
+	 * {@inheritDoc} Sorts all buckets that are not sorted yet, so that the 
+	 * lookups don't modify the buckets.
+	 */
+	@Override
+	public void freeze() {
+		buckets.freeze();
 	}
 
-	private boolean arraySpaceAllocated(int bucketId) {
-		return buckets.size() >= bucketId + 1;
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void close() {
+		buckets.close();
 	}
 }
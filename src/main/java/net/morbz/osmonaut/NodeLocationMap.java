@@ -0,0 +1,136 @@
+package net.morbz.osmonaut;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+
+import java.util.Arrays;
+
+import net.morbz.osmonaut.osm.LatLon;
+import net.morbz.osmonaut.osm.Node;
+
+/**
+ * Stores only the locations of nodes, without their tags. Instead of node 
+ * objects each bucket holds primitive arrays of the ID offsets and the 
+ * coordinates as fixed-point integers with 7 decimals, which is the precision
+ * of the default PBF granularity, see SortedBuckets. So every node needs 12 
+ * bytes of memory. The returned nodes are created on every lookup.
+ */
+public class NodeLocationMap implements EntityMap<Node> {
+	private static final double FIXED_POINT_SCALE = 10_000_000;
+
+	private SortedBuckets<LocationBucket> buckets = new SortedBuckets<LocationBucket>() {
+		@Override
+		protected LocationBucket createBucket() {
+			return new LocationBucket();
+		}
+	};
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void add(Node node) {
+		long id = node.getId();
+		LocationBucket bucket = buckets.getBucket(id, true);
+		int position = bucket.append(SortedBuckets.getOffset(id));
+
+		// Add location
+		LatLon latlon = node.getLatlon();
+		bucket.lats[position] = toFixedPoint(latlon.getLat());
+		bucket.lons[position] = toFixedPoint(latlon.getLon());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Node get(long id) {
+		LocationBucket bucket = buckets.getBucket(id, false);
+		if(bucket == null) {
+			return null;
+		}
+
+		// Find location
+		int index = bucket.indexOf(SortedBuckets.getOffset(id));
+		if(index < 0) {
+			return null;
+		}
+		LatLon latlon = new LatLon(fromFixedPoint(bucket.lats[index]), fromFixedPoint(bucket.lons[index]));
+		return new Node(id, null, latlon);
+	}
+
+	private static int toFixedPoint(double degrees) {
+		return (int)Math.round(degrees * FIXED_POINT_SCALE);
+	}
+
+	private static double fromFixedPoint(int value) {
+		// Same calculation as the PBF decoder with the default granularity of
+		// 100 nanodegrees, so that the coordinates are exactly the same
+		return 0.000000001 * (100L * value);
+	}
+
+	/**
+	 * The locations of the nodes of a bucket.
+	 */
+	private static class LocationBucket extends SortedBuckets.Bucket {
+		private int[] lats = new int[16];
+		private int[] lons = new int[16];
+
+		@Override
+		protected void grow(int capacity) {
+			lats = Arrays.copyOf(lats, capacity);
+			lons = Arrays.copyOf(lons, capacity);
+		}
+
+		@Override
+		protected void reorder(int[] positions, int size) {
+			int[] sortedLats = new int[lats.length];
+			int[] sortedLons = new int[lons.length];
+			for(int i = 0; i < size; i++) {
+				sortedLats[i] = lats[positions[i]];
+				sortedLons[i] = lons[positions[i]];
+			}
+			lats = sortedLats;
+			lons = sortedLons;
+		}
+	}
+
+	/**
+	 * {@inheritDoc} Sorts all buckets that are not sorted yet, so that the 
+	 * lookups don't modify the buckets.
+	 */
+	@Override
+	public void freeze() {
+		buckets.freeze();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void close() {
+		buckets.close();
+	}
+}
@@ -25,11 +25,13 @@ package net.morbz.osmonaut;
 */
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-
-import org.mapdb.DB;
-import org.mapdb.DBMaker;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import net.morbz.osmonaut.binary.OsmonautSink;
 import net.morbz.osmonaut.binary.pbf.PbfDecoder;
@@ -38,6 +40,7 @@ import net.morbz.osmonaut.osm.EntityType;
 import net.morbz.osmonaut.osm.Node;
 import net.morbz.osmonaut.osm.Relation;
 import net.morbz.osmonaut.osm.RelationMember;
+import net.morbz.osmonaut.osm.Tags;
 import net.morbz.osmonaut.osm.Way;
 
 /**
@@ -46,17 +49,34 @@ import net.morbz.osmonaut.osm.Way;
  * @author MorbZ
  */
 public class Osmonaut {
+	// The blobs after which adaptive processors resize the decoder threads
+	private static final int ADAPTATION_BLOBS = 32;
+
 	private EntityCache<Node> nodeCache;
 	private EntityCache<Way> wayCache;
 
 	private final File file;
 	private final EntityFilter filter;
+	private TagFilter tagFilter;
 	private IOsmonautReceiver receiver;
+	private AsyncReceiver asyncReceiver;
 	private PbfDecoder decoder;
 
 	private boolean wayNodeTags = true;
 	private int processors;
+	private boolean adaptiveProcessors = true;
+	// The decoder threads that each pass needed in the last scan
+	private Map<String, Integer> passWorkers = new HashMap<String, Integer>();
+	private int queueDepth = 0;
+	private int receiverThreads = 0;
+	private ExecutorService executorService;
 	private boolean storeOnDisk = false;
+	private boolean denseNodeLocations = false;
+	private boolean memoryMapping = true;
+	private boolean storeIndex = false;
+	private boolean parallelFiltering = false;
+	private boolean unorderedDelivery = false;
+	private boolean concurrentReceiver = false;
 	private int verbosity = 1;
 
 	/**
@@ -68,7 +88,7 @@ public class Osmonaut {
 	public Osmonaut(String filename, EntityFilter filter) {
 		this.file = new File(filename);
 		this.filter = filter;
-		processors = Math.min(4, Runtime.getRuntime().availableProcessors());
+		processors = Runtime.getRuntime().availableProcessors();
 	}
 
 	/**
@@ -118,59 +138,129 @@ public class Osmonaut {
 			return;
 		}
 
-		// Create PBF decoder
-		decoder = new PbfDecoder(file, processors);
+		try {
+			// Blocking receivers are called on separate threads
+			if (receiverThreads > 0 && receiver instanceof IConcurrentOsmonautReceiver) {
+				asyncReceiver = new AsyncReceiver((IConcurrentOsmonautReceiver)receiver, receiverThreads);
+				this.receiver = asyncReceiver;
+			}
 
-		// Create caches
-		if (storeOnDisk) {
-			// Create MapDB database
-			DB db = DBMaker.tempFileDB().closeOnJvmShutdown().fileMmapEnableIfSupported().fileChannelEnable().make();
+			// Create PBF decoder
+			decoder = new PbfDecoder(file, processors, memoryMapping);
+			decoder.setParallelFiltering(parallelFiltering);
+			decoder.setOrderedDelivery(!unorderedDelivery);
+			if (adaptiveProcessors) {
+				decoder.setAdaptationWindow(ADAPTATION_BLOBS);
+			}
+			if (queueDepth > 0) {
+				decoder.setQueueDepth(queueDepth);
+			}
+			if (executorService != null) {
+				decoder.setExecutorService(executorService);
+			}
 
-			nodeCache = EntityCache.getDiskEntityCache(db, "node");
-			wayCache = EntityCache.getDiskEntityCache(db, "way");
-		} else {
-			nodeCache = EntityCache.getMemoryEntityCache();
-			wayCache = EntityCache.getMemoryEntityCache();
-		}
+			// Load blob index
+			boolean indexLoaded = false;
+			if (storeIndex) {
+				try {
+					indexLoaded = decoder.loadIndex();
+				} catch (IOException e) {
+					log("E: Unable to read index file " + decoder.getIndexFile(), 0);
+				}
+			}
 
-		// Scan relations
-		if (filter.getEntityEnabled(EntityType.RELATION)) {
-			log("Scanning relations...", 1);
-			scanRelations();
-		}
+			// Create caches. Dense node locations can't store the tags.
+			if (denseNodeLocations && wayNodeTags) {
+				log("Dense node locations are not used because way-nodes have tags", 1);
+			}
+			if (denseNodeLocations && !wayNodeTags) {
+				nodeCache = EntityCache.getDenseNodeLocationCache(parallelFiltering);
+			} else if (storeOnDisk) {
+				nodeCache = EntityCache.getDiskEntityCache("node", parallelFiltering);
+			} else if (wayNodeTags) {
+				nodeCache = EntityCache.getMemoryEntityCache(parallelFiltering);
+			} else {
+				// Way-nodes without tags only need their locations
+				nodeCache = EntityCache.getNodeLocationCache(parallelFiltering);
+			}
+			if (storeOnDisk) {
+				wayCache = EntityCache.getDiskEntityCache("way", parallelFiltering);
+			} else {
+				wayCache = EntityCache.getMemoryEntityCache(parallelFiltering);
+			}
 
-		// Scan ways
-		if (filter.getEntityEnabled(EntityType.WAY) || wayCache.needsEntities()) {
-			log("Scanning ways...", 1);
-			scanWays();
-		}
+			// Scan relations
+			if (filter.getEntityEnabled(EntityType.RELATION)) {
+				log("Scanning relations...", 1);
+				scanRelations();
+			}
 
-		// Final scan
-		log("Final scan...", 1);
-		finalScan();
+			// Scan ways
+			if (filter.getEntityEnabled(EntityType.WAY) || wayCache.needsEntities()) {
+				log("Scanning ways...", 1);
+				scanWays();
+			}
 
-		// Close PBF file
-		decoder.close();
+			// Final scan
+			log("Final scan...", 1);
+			finalScan();
+			if (asyncReceiver != null) {
+				// Reports the errors of the last callbacks
+				asyncReceiver.close();
+				asyncReceiver = null;
+			}
 
-		// Free variables
-		nodeCache = null;
-		wayCache = null;
-		decoder = null;
+			// Store blob index
+			if (storeIndex && !indexLoaded && decoder.isIndexed()) {
+				try {
+					decoder.saveIndex();
+				} catch (IOException e) {
+					log("E: Unable to write index file " + decoder.getIndexFile(), 0);
+				}
+			}
+		} finally {
+			// Free resources, also if the scan failed
+			closeScan();
+		}
+	}
+
+	/**
+	 * Closes the PBF file and the caches and stops the receiver threads.
+	 */
+	private void closeScan() {
+		if (asyncReceiver != null) {
+			asyncReceiver.shutdown();
+			asyncReceiver = null;
+		}
+		if (decoder != null) {
+			decoder.close();
+			decoder = null;
+		}
+		if (nodeCache != null) {
+			nodeCache.close();
+			nodeCache = null;
+		}
+		if (wayCache != null) {
+			wayCache.close();
+			wayCache = null;
+		}
 	}
 
 	/**
 	 * This scan gets the IDs of all members of required relations.
 	 */
 	private void scanRelations() {
-		decoder.scan(EntityType.RELATION, new OsmonautSink() {
+		decode("relations", EntityType.RELATION, tagFilter, new ReceiverSink() {
 			@Override
-			public void foundEntity(Entity entity) {
-				Relation relation = (Relation)entity;
+			public Entity foundEntityInDecoder(Entity entity, boolean neededByReceiver) {
+				// The caches are concurrent with parallel filtering
+				foundEntity(entity, neededByReceiver);
+				return null;
+			}
 
-				// Is needed?
-				if (!entityNeededForReceiver(relation)) {
-					return;
-				}
+			@Override
+			public void foundEntity(Entity entity, boolean neededByReceiver) {
+				Relation relation = (Relation)entity;
 
 				// Get all member IDs
 				for (RelationMember member : relation.getMembers()) {
@@ -195,15 +285,17 @@ public class Osmonaut {
 	 * This scan gets the IDs of all nodes of required ways.
 	 */
 	private void scanWays() {
-		decoder.scan(EntityType.WAY, new OsmonautSink() {
+		decode("ways", EntityType.WAY, receiverTagFilter(wayCache), new CacheSink(wayCache) {
 			@Override
-			public void foundEntity(Entity entity) {
-				Way way = (Way)entity;
+			public Entity foundEntityInDecoder(Entity entity, boolean neededByReceiver) {
+				// The caches are concurrent with parallel filtering
+				foundEntity(entity, neededByReceiver);
+				return null;
+			}
 
-				// Is needed?
-				if (!entityNeededForReceiver(way) && !wayCache.isNeeded(way.getId())) {
-					return;
-				}
+			@Override
+			public void foundEntity(Entity entity, boolean neededByReceiver) {
+				Way way = (Way)entity;
 
 				// Add all node IDs
 				for (Node node : way.getNodes()) {
@@ -217,116 +309,228 @@ public class Osmonaut {
 	 * This scan is executed when all required nodes and ways are cached.
 	 */
 	private void finalScan() {
+		// Concurrent receivers get the entities directly from the decoder 
+		// threads. Concurrent caches are filled by the decoder threads too, 
+		// the scanning thread fills the others.
+		concurrentReceiver = parallelFiltering && unorderedDelivery 
+				&& receiver instanceof IConcurrentOsmonautReceiver;
+
 		if(filter.getEntityEnabled(EntityType.NODE) || nodeCache.needsEntities()) {
 			log("...Scanning nodes", 1);
-			decoder.scan(EntityType.NODE, new OsmonautSink() {
+			decode("final nodes", EntityType.NODE, receiverTagFilter(nodeCache), new CacheSink(nodeCache) {
 				@Override
-				public void foundEntity(Entity entity) {
+				public Entity foundEntityInDecoder(Entity entity, boolean neededByReceiver) {
+					Node node = (Node)entity;
+					if (nodeCache.isConcurrent()) {
+						cacheNode(node);
+					}
+					if (concurrentReceiver && neededByReceiver) {
+						receiver.foundEntity(new Node(node.getId(), new Tags(node.getTags()), node.getLatlon()));
+					}
+
+					// Nodes that are cached already are only passed on to 
+					// the receiver
+					if ((neededByReceiver && !concurrentReceiver) || nodeCache.isNeeded(node.getId())) {
+						return node;
+					}
+					return null;
+				}
+
+				@Override
+				public void foundEntity(Entity entity, boolean neededByReceiver) {
 					Node node = (Node)entity;
 
 					// Is needed by receiver?
-					if (entityNeededForReceiver(node)) {
-						receiver.foundEntity(node);
+					if (neededByReceiver && !concurrentReceiver) {
+						receiver.foundEntity(new Node(node.getId(), new Tags(node.getTags()), node.getLatlon()));
 					}
 
 					// Is needed for ways/relations?
-					if (nodeCache.isNeeded(node.getId())) {
-						if (!wayNodeTags) {
-							// Remove tags
-							node = new Node(node.getId(), null, node.getLatlon());
-						}
-						nodeCache.addEntity(node);
-					}
+					cacheNode(node);
 				}
 			});
 		}
+		nodeCache.freeze();
 
 		if(filter.getEntityEnabled(EntityType.WAY) || wayCache.needsEntities()) {
 			log("...Scanning ways", 1);
-			decoder.scan(EntityType.WAY, new OsmonautSink() {
+			decode("final ways", EntityType.WAY, receiverTagFilter(wayCache), new CacheSink(wayCache) {
 				@Override
-				public void foundEntity(Entity entity) {
-					Way way = (Way)entity;
-
-					// Is needed?
-					if (!entityNeededForReceiver(way) && !wayCache.isNeeded(way.getId())) {
-						return;
+				public Entity foundEntityInDecoder(Entity entity, boolean neededByReceiver) {
+					// The node cache is frozen, so the decoder threads can 
+					// assemble the ways. They are still passed on in file order.
+					Way way = assembleWay((Way)entity);
+					if (wayCache.isConcurrent() && wayCache.isNeeded(way.getId())) {
+						wayCache.addEntity(way);
+					}
+					if (concurrentReceiver && neededByReceiver) {
+						receiver.foundEntity(way);
 					}
 
-					// Assemble nodes
-					List<Node> nodes = new ArrayList<Node>();
-					for (Node incompleteNode : way.getNodes()) {
-						Node node = nodeCache.getEntity(incompleteNode.getId());
-						if (node == null) {
-							log("E: Node for way not found", 0);
-						} else {
-							nodes.add(node);
-						}
+					// Ways that are cached already are only passed on to 
+					// the receiver
+					if ((neededByReceiver && !concurrentReceiver) || wayCache.isNeeded(way.getId())) {
+						return way;
 					}
+					return null;
+				}
 
-					// Assemble way
-					Way newWay = new Way(way.getId(), way.getTags(), nodes);
+				@Override
+				public void foundEntity(Entity entity, boolean neededByReceiver) {
+					// With parallel filtering the way has already been assembled
+					Way newWay;
+					if (parallelFiltering) {
+						newWay = (Way)entity;
+					} else {
+						newWay = assembleWay((Way)entity);
+					}
 
 					// Is needed by receiver?
-					if (entityNeededForReceiver(way)) {
+					if (neededByReceiver && !concurrentReceiver) {
 						receiver.foundEntity(newWay);
 					}
 
 					// Is needed for relations?
-					if (wayCache.isNeeded(way.getId())) {
+					if (wayCache.isNeeded(newWay.getId())) {
 						wayCache.addEntity(newWay);
 					}
 				}
 			});
 		}
+		wayCache.freeze();
 
 		if(filter.getEntityEnabled(EntityType.RELATION)) {
 			log("...Scanning relations", 1);
-			decoder.scan(EntityType.RELATION, new OsmonautSink() {
+			decode("final relations", EntityType.RELATION, tagFilter, new ReceiverSink() {
 				@Override
-				public void foundEntity(Entity entity) {
-					Relation relation = (Relation)entity;
-
-					// Is needed?
-					if (!entityNeededForReceiver(relation)) {
-						return;
+				public Entity foundEntityInDecoder(Entity entity, boolean neededByReceiver) {
+					if (!concurrentReceiver) {
+						return entity;
 					}
 
-					// Assemble members
-					boolean incomplete = relation.isIncomplete();
-					List<RelationMember> members = new ArrayList<RelationMember>();
-					for (RelationMember member : relation.getMembers()) {
-						// Get real entity
-						long id = member.getEntity().getId();
-						Entity memberEntity = null;
-						switch (member.getEntity().getEntityType()) {
-						case NODE:
-							memberEntity = nodeCache.getEntity(id);
-							break;
-						case WAY:
-							memberEntity = wayCache.getEntity(id);
-							break;
-						default:
-							break;
-						}
-
-						// Add entity
-						if (memberEntity == null) {
-							// System.out.println("E: Missing relation member");
-							incomplete = true;
-						} else {
-							members.add(new RelationMember(memberEntity, member.getRole()));
-						}
-					}
+					// Both caches are frozen
+					receiver.foundEntity(assembleRelation((Relation)entity));
+					return null;
+				}
 
-					// Assemble relation
-					Relation newRelation = new Relation(relation.getId(), relation.getTags(), members, incomplete);
-					receiver.foundEntity(newRelation);
+				@Override
+				public void foundEntity(Entity entity, boolean neededByReceiver) {
+					receiver.foundEntity(assembleRelation((Relation)entity));
 				}
 			});
 		}
 	}
 
+	/**
+	 * Scans the PBF file for the entity type. With adaptive processors the 
+	 * pass starts with as many decoder threads as it needed in the last scan,
+	 * and the decoder adapts them while the pass runs.
+	 */
+	private void decode(String pass, EntityType type, TagFilter tagFilter, OsmonautSink sink) {
+		Integer workers = passWorkers.get(pass);
+		if (adaptiveProcessors && workers != null) {
+			decoder.setActiveWorkers(workers);
+		}
+		decoder.scan(type, tagFilter, sink);
+		passWorkers.put(pass, decoder.getNeededWorkers());
+
+		// The entities of a pass are processed before the next pass starts
+		if (asyncReceiver != null) {
+			asyncReceiver.awaitCallbacks();
+		}
+		log(String.format(Locale.ENGLISH, "...Sink busy %.0f%%, %s pass needs %d decoder threads", 
+				decoder.getSinkUtilization() * 100, pass, decoder.getNeededWorkers()), 2);
+		log(String.format(Locale.ENGLISH, "...Decompressors hold %d KB native and %d KB heap memory", 
+				decoder.getNativeMemoryHeld() / 1024, decoder.getBufferMemoryHeld() / 1024), 2);
+	}
+
+	/**
+	 * @param pass
+	 *            The name of the pass
+	 * @return The number of decoder threads that the pass needed in the last
+	 *         scan or null if it hasn't run yet
+	 */
+	Integer getPassWorkers(String pass) {
+		return passWorkers.get(pass);
+	}
+
+	/**
+	 * Adds the node to the node cache if it is needed for ways or relations.
+	 * 
+	 * @param node
+	 *            The decoded node
+	 */
+	private void cacheNode(Node node) {
+		if (nodeCache.isNeeded(node.getId())) {
+			// Way-nodes without tags need less memory
+			Tags tags = wayNodeTags ? new Tags(node.getTags()) : null;
+			nodeCache.addEntity(new Node(node.getId(), tags, node.getLatlon()));
+		}
+	}
+
+	/**
+	 * Replaces the placeholder nodes of the way with the cached nodes.
+	 * 
+	 * @param way
+	 *            The way with placeholder nodes
+	 * @return The assembled way
+	 */
+	private Way assembleWay(Way way) {
+		// Assemble nodes
+		List<Node> nodes = new ArrayList<Node>();
+		for (Node incompleteNode : way.getNodes()) {
+			Node node = nodeCache.getEntity(incompleteNode.getId());
+			if (node == null) {
+				log("E: Node for way not found", 0);
+			} else {
+				nodes.add(node);
+			}
+		}
+
+		// Assemble way
+		return new Way(way.getId(), new Tags(way.getTags()), nodes);
+	}
+
+	/**
+	 * Replaces the placeholder members of the relation with the cached 
+	 * entities. Relations with missing members are marked as incomplete.
+	 * 
+	 * @param relation
+	 *            The relation with placeholder members
+	 * @return The assembled relation
+	 */
+	private Relation assembleRelation(Relation relation) {
+		// Assemble members
+		boolean incomplete = relation.isIncomplete();
+		List<RelationMember> members = new ArrayList<RelationMember>();
+		for (RelationMember member : relation.getMembers()) {
+			// Get real entity
+			long id = member.getEntity().getId();
+			Entity memberEntity = null;
+			switch (member.getEntity().getEntityType()) {
+			case NODE:
+				memberEntity = nodeCache.getEntity(id);
+				break;
+			case WAY:
+				memberEntity = wayCache.getEntity(id);
+				break;
+			default:
+				break;
+			}
+
+			// Add entity
+			if (memberEntity == null) {
+				// System.out.println("E: Missing relation member");
+				incomplete = true;
+			} else {
+				members.add(new RelationMember(memberEntity, member.getRole()));
+			}
+		}
+
+		// Assemble relation
+		return new Relation(relation.getId(), new Tags(relation.getTags()), members, incomplete);
+	}
+
 	/**
 	 * Checks if the receiver needs this entity type in general and also exactly
 	 * this entity.
@@ -340,12 +544,70 @@ public class Osmonaut {
 		if (!filter.getEntityEnabled(type)) {
 			return false;
 		}
+		if (tagFilter != null && !tagFilter.matches(entity.getTags())) {
+			return false;
+		}
 		if (!receiver.needsEntity(type, entity.getTags())) {
 			return false;
 		}
 		return true;
 	}
 
+	/**
+	 * A sink for entities that are only needed by the receiver.
+	 */
+	private abstract class ReceiverSink implements OsmonautSink {
+		@Override
+		public boolean isNeededByReceiver(Entity entity) {
+			return entityNeededForReceiver(entity);
+		}
+
+		@Override
+		public boolean isNeededAsMember(Entity entity) {
+			return false;
+		}
+
+		@Override
+		public Entity foundEntityInDecoder(Entity entity, boolean neededByReceiver) {
+			return entity;
+		}
+	}
+
+	/**
+	 * A sink for entities that are needed by the receiver or by the cache. 
+	 * The decoder threads only check the cache with parallel filtering, when
+	 * its IDs are tracked by a ConcurrentIdTracker. As IDs are removed when 
+	 * their entities are added, at worst they pass on an entity that has 
+	 * already been cached.
+	 */
+	private abstract class CacheSink extends ReceiverSink {
+		private EntityCache<?> cache;
+
+		public CacheSink(EntityCache<?> cache) {
+			this.cache = cache;
+		}
+
+		@Override
+		public boolean isNeededAsMember(Entity entity) {
+			return cache.isNeeded(entity.getId());
+		}
+	}
+
+	/**
+	 * Returns the tag filter if the decoder may drop the entities that don't
+	 * match it. This is only the case if the cache doesn't need any entities.
+	 * 
+	 * @param cache
+	 *            The cache of the scanned entity type
+	 * @return The tag filter or null if all entities are needed
+	 */
+	private TagFilter receiverTagFilter(EntityCache<?> cache) {
+		if (cache.needsEntities()) {
+			return null;
+		}
+		return tagFilter;
+	}
+
 	// TODO: Add progress receiver interface, so that the caller can be 
 	// informed about the progress even with verbosity = 0
 	// TODO: Use Log4j instead of sysouts
@@ -365,15 +627,80 @@ public class Osmonaut {
 		this.wayNodeTags = wayNodeTags;
 	}
 
+	/**
+	 * @param tagFilter
+	 *            A filter that entities have to match before they are passed 
+	 *            to the receiver. It is evaluated by the decoder threads, so
+	 *            entities that don't match are dropped early. Defaults to 
+	 *            'null', which passes all entities.
+	 */
+	public void setTagFilter(TagFilter tagFilter) {
+		this.tagFilter = tagFilter;
+	}
+
 	/**
 	 * @param processors
 	 *            Number of processors to use to decode the pbf. By default all
 	 *            available processors are used.
+	 * @see #setAdaptiveProcessors(boolean)
 	 */
 	public void setProcessors(int processors) {
 		this.processors = processors;
 	}
 
+	/**
+	 * @param executorService
+	 *            The executor that decodes the PBF blobs, e.g. a pool that is
+	 *            shared by many scans. It is not shut down by Osmonaut. 
+	 *            Defaults to 'null', which creates a pool with the number of 
+	 *            processors that is kept for all passes of a scan.
+	 */
+	public void setExecutorService(ExecutorService executorService) {
+		this.executorService = executorService;
+	}
+
+	/**
+	 * @param adaptiveProcessors
+	 *            Whether the number of decoder threads is adapted while a 
+	 *            pass runs. After every 32 blobs the decoder measures the 
+	 *            decoding time against the time of the thread that processes
+	 *            the decoded entities, and uses only as many of the processors
+	 *            as it takes to keep that thread busy. Each pass starts with
+	 *            the number of threads it needed in the last scan, the first 
+	 *            scan starts with all processors. The numbers are logged with
+	 *            verbosity 2. Defaults to 'true'.
+	 */
+	public void setAdaptiveProcessors(boolean adaptiveProcessors) {
+		this.adaptiveProcessors = adaptiveProcessors;
+	}
+
+	/**
+	 * @param receiverThreads
+	 *            The maximum number of concurrent foundEntity() calls of an
+	 *            IConcurrentOsmonautReceiver. If set, every call runs on its 
+	 *            own virtual thread on Java 21 and later, or on a pool of 
+	 *            platform threads on older versions. So a receiver that blocks
+	 *            doesn't hold back the decoding, which stays on the platform 
+	 *            decoder threads. The calls then run concurrently and in no 
+	 *            particular order, even without unordered delivery. Other 
+	 *            receivers are not affected. Defaults to '0', which calls the
+	 *            receiver directly.
+	 */
+	public void setReceiverThreads(int receiverThreads) {
+		this.receiverThreads = receiverThreads;
+	}
+
+	/**
+	 * @param queueDepth
+	 *            The maximum number of PBF blobs that are decoded but not yet
+	 *            processed. A deeper queue keeps the decoder threads busy when
+	 *            some blobs take longer, but needs more memory. Defaults to 
+	 *            twice the number of processors.
+	 */
+	public void setQueueDepth(int queueDepth) {
+		this.queueDepth = queueDepth;
+	}
+
 	/**
 	 * @param storeOnDisk
 	 *            Whether entity caches should be stored on disk. Enabling this
@@ -384,11 +711,76 @@ public class Osmonaut {
 		this.storeOnDisk = storeOnDisk;
 	}
 
+	/**
+	 * @param denseNodeLocations
+	 *            Whether the locations of way-nodes should be stored in a 
+	 *            memory mapped temporary file with 8 bytes for every possible
+	 *            node ID. Looking up a node is then a single read, which is 
+	 *            the fastest option for planet-sized files. The file is 
+	 *            unmapped and deleted at the end of the scan. On JVMs that 
+	 *            don't allow unmapping, its disk space is only freed once 
+	 *            the mapping is garbage collected, and on Windows it is only
+	 *            deleted on exit. Only used if way-nodes have no tags, see 
+	 *            setWayNodeTags(). Defaults to 'false'.
+	 */
+	public void setDenseNodeLocations(boolean denseNodeLocations) {
+		this.denseNodeLocations = denseNodeLocations;
+	}
+
+	/**
+	 * @param memoryMapping
+	 *            Whether the PBF file should be memory mapped. If disabled, the
+	 *            decoder threads read the blobs with positional file reads, 
+	 *            which needs less address space. Defaults to 'true'.
+	 */
+	public void setMemoryMapping(boolean memoryMapping) {
+		this.memoryMapping = memoryMapping;
+	}
+
+	/**
+	 * @param storeIndex
+	 *            Whether the index of the PBF blobs should be stored in a file
+	 *            next to the PBF file. Later scans of the same file use this 
+	 *            index, so that they only need to read the blobs that contain
+	 *            the scanned entity types. Defaults to 'false'.
+	 */
+	public void setStoreIndex(boolean storeIndex) {
+		this.storeIndex = storeIndex;
+	}
+
+	/**
+	 * @param parallelFiltering
+	 *            Whether needsEntity() of the receiver is called by the 
+	 *            decoder threads in parallel, so that only the needed entities
+	 *            are passed on to the scanning thread. The receiver's 
+	 *            needsEntity() must be thread-safe if this is enabled. The 
+	 *            IDs of the members of needed relations and ways are then 
+	 *            also collected, and the ways assembled, by the decoder 
+	 *            threads. Defaults to 'false'.
+	 */
+	public void setParallelFiltering(boolean parallelFiltering) {
+		this.parallelFiltering = parallelFiltering;
+	}
+
+	/**
+	 * @param unorderedDelivery
+	 *            Whether the entities of a decoded blob are passed on as soon
+	 *            as the blob is decoded, instead of in file order. A slow blob
+	 *            then doesn't hold back the others. If parallel filtering is 
+	 *            enabled too and the receiver is an 
+	 *            IConcurrentOsmonautReceiver, the decoder threads call the 
+	 *            receiver directly. Defaults to 'false'.
+	 */
+	public void setUnorderedDelivery(boolean unorderedDelivery) {
+		this.unorderedDelivery = unorderedDelivery;
+	}
+
 	/**
 	 * @param verbosity
 	 *            Sets the verbosity level. The levels are:
 	 *            *0: Prints only errors
 	 *            *1: Prints also the most important progress steps
+	 *            *2: Prints also the number of decoder threads of each pass
 	 *            Defaults to 1.
 	 */
 	public void setVerbosity(int verbosity) {
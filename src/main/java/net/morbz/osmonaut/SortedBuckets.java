@@ -0,0 +1,217 @@
+package net.morbz.osmonaut;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The buckets of an entity map. Each bucket holds the entities of 1M IDs as
+ * primitive arrays, with the offsets of the IDs in the bucket in a sorted 
+ * array. Since entities usually arrive sorted by ID, only buckets that 
+ * received an entity out of order are sorted before the next lookup. 
+ * Negative IDs are stored in separate buckets. The buckets of IDs with an 
+ * absolute value of 2^36 and more are kept in a hash map, so that the whole
+ * range of 64-bit IDs can be used.
+ * 
+ * @param <B> The type of the buckets
+ */
+abstract class SortedBuckets<B extends SortedBuckets.Bucket> {
+	private static final int BUCKET_SHIFT = 20;
+	private static final int OFFSET_MASK = (1 << BUCKET_SHIFT) - 1;
+	// The lists hold the buckets of IDs below 2^36
+	private static final int MAX_LIST_SIZE = 1 << 16;
+
+	private List<B> buckets = new ArrayList<B>();
+	private List<B> negativeBuckets = new ArrayList<B>();
+	// Keyed by the ID shifted by the bucket bits
+	private Map<Long, B> sparseBuckets = new HashMap<Long, B>();
+
+	/**
+	 * @return A new empty bucket
+	 */
+	protected abstract B createBucket();
+
+	/**
+	 * @param id The entity ID
+	 * @param create Whether the bucket is created if it doesn't exist
+	 * @return The bucket of the ID or null if it doesn't exist
+	 */
+	public B getBucket(long id, boolean create) {
+		long index = getIndex(id);
+		if(index >>> BUCKET_SHIFT >= MAX_LIST_SIZE) {
+			return getSparseBucket(id, create);
+		}
+		List<B> buckets = id < 0 ? negativeBuckets : this.buckets;
+		int bucketId = (int)(index >>> BUCKET_SHIFT);
+		if(bucketId >= buckets.size()) {
+			if(!create) {
+				return null;
+			}
+			while(buckets.size() <= bucketId) {
+				buckets.add(null);
+			}
+		}
+
+		// Get/create bucket
+		B bucket = buckets.get(bucketId);
+		if(bucket == null && create) {
+			bucket = createBucket();
+			buckets.set(bucketId, bucket);
+		}
+		return bucket;
+	}
+
+	private B getSparseBucket(long id, boolean create) {
+		B bucket = sparseBuckets.get(id >> BUCKET_SHIFT);
+		if(bucket == null && create) {
+			bucket = createBucket();
+			sparseBuckets.put(id >> BUCKET_SHIFT, bucket);
+		}
+		return bucket;
+	}
+
+	/**
+	 * @param id The entity ID
+	 * @return The offset of the ID in its bucket
+	 */
+	public static int getOffset(long id) {
+		return (int)getIndex(id) & OFFSET_MASK;
+	}
+
+	private static long getIndex(long id) {
+		// Negative IDs are complemented, i.e. -1 becomes 0
+		return id < 0 ? ~id : id;
+	}
+
+	/**
+	 * Sorts all buckets that are not sorted yet, so that the lookups don't 
+	 * modify the buckets.
+	 */
+	public void freeze() {
+		freeze(buckets);
+		freeze(negativeBuckets);
+		freeze(sparseBuckets.values());
+	}
+
+	private void freeze(Collection<B> buckets) {
+		for(B bucket : buckets) {
+			if(bucket != null && !bucket.sorted) {
+				bucket.sort();
+			}
+		}
+	}
+
+	/**
+	 * Drops all buckets.
+	 */
+	public void close() {
+		buckets = null;
+		negativeBuckets = null;
+		sparseBuckets = null;
+	}
+
+	/**
+	 * The offsets of the IDs of a bucket. Subclasses store the values of the
+	 * entities in arrays at the same positions.
+	 */
+	abstract static class Bucket {
+		private int[] offsets = new int[16];
+		private int size = 0;
+		boolean sorted = true;
+
+		/**
+		 * Appends the offset of an ID.
+		 * 
+		 * @param offset The offset of the ID in the bucket
+		 * @return The position at which the values of the entity have to be
+		 * stored
+		 */
+		public int append(int offset) {
+			// Grow arrays. Entities that are added twice may exceed the IDs 
+			// of a bucket.
+			if(size == offsets.length) {
+				int capacity = size * 2;
+				offsets = Arrays.copyOf(offsets, capacity);
+				grow(capacity);
+			}
+
+			if(size > 0 && offset < offsets[size - 1]) {
+				sorted = false;
+			}
+			offsets[size] = offset;
+			return size++;
+		}
+
+		/**
+		 * @param offset The offset of the ID in the bucket
+		 * @return The position of the values of the entity, or a negative 
+		 * number if the bucket doesn't contain the ID
+		 */
+		public int indexOf(int offset) {
+			if(!sorted) {
+				sort();
+			}
+			return Arrays.binarySearch(offsets, 0, size, offset);
+		}
+
+		void sort() {
+			// Sort the offsets together with their positions
+			long[] keys = new long[size];
+			for(int i = 0; i < size; i++) {
+				keys[i] = ((long)offsets[i] << 32) | i;
+			}
+			Arrays.sort(keys);
+
+			int[] positions = new int[size];
+			for(int i = 0; i < size; i++) {
+				positions[i] = (int)keys[i];
+				offsets[i] = (int)(keys[i] >>> 32);
+			}
+			reorder(positions, size);
+			sorted = true;
+		}
+
+		/**
+		 * Grows the arrays of the values.
+		 * 
+		 * @param capacity The new length of the arrays
+		 */
+		protected abstract void grow(int capacity);
+
+		/**
+		 * Reorders the values after the offsets have been sorted.
+		 * 
+		 * @param positions The previous position of the values at each 
+		 * position
+		 * @param size The number of entities
+		 */
+		protected abstract void reorder(int[] positions, int size);
+	}
+}
@@ -0,0 +1,132 @@
+package net.morbz.osmonaut;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import net.morbz.osmonaut.osm.Tags;
+
+/**
+ * A declarative pre-filter for the tags of entities. An entity matches if it
+ * has at least one of the added keys or key-value pairs. A filter without any
+ * conditions matches all entities.
+ * 
+ * Unlike IOsmonautReceiver.needsEntity() the filter is evaluated by the
+ * decoder threads on the string table indexes of the PBF blocks. Entities that
+ * don't match are dropped before they are built, unless they are needed as
+ * members of other entities. The receiver is only asked for entities that
+ * match the filter.
+ * 
+ * @author MorbZ
+ */
+public class TagFilter {
+	// Maps each key to its accepted values, or null if all values are accepted
+	private Map<String, Set<String>> conditions = new LinkedHashMap<String, Set<String>>();
+
+	/**
+	 * Accepts entities that have a tag with this key.
+	 * 
+	 * @param key
+	 *            The key of the tag
+	 */
+	public void addKey(String key) {
+		conditions.put(key, null);
+	}
+
+	/**
+	 * Accepts entities that have a tag with this key and value.
+	 * 
+	 * @param key
+	 *            The key of the tag
+	 * @param value
+	 *            The value of the tag
+	 */
+	public void addKeyValue(String key, String value) {
+		if (conditions.containsKey(key)) {
+			Set<String> values = conditions.get(key);
+			if (values != null) {
+				values.add(value);
+			}
+		} else {
+			Set<String> values = new HashSet<String>();
+			values.add(value);
+			conditions.put(key, values);
+		}
+	}
+
+	/**
+	 * @return The keys of all conditions
+	 */
+	public Set<String> getKeys() {
+		return Collections.unmodifiableSet(conditions.keySet());
+	}
+
+	/**
+	 * @param key
+	 *            The key of the condition
+	 * @return The accepted values for the key or null if all values are
+	 *         accepted
+	 */
+	public Set<String> getValues(String key) {
+		Set<String> values = conditions.get(key);
+		if (values == null) {
+			return null;
+		}
+		return Collections.unmodifiableSet(values);
+	}
+
+	/**
+	 * @return True if the filter has no conditions and matches all entities
+	 */
+	public boolean isEmpty() {
+		return conditions.isEmpty();
+	}
+
+	/**
+	 * @param tags
+	 *            The tags to check
+	 * @return True if the tags match at least one condition
+	 */
+	public boolean matches(Tags tags) {
+		if (isEmpty()) {
+			return true;
+		}
+		for (Map.Entry<String, Set<String>> condition : conditions.entrySet()) {
+			String value = tags.get(condition.getKey());
+			if (value == null) {
+				continue;
+			}
+			if (condition.getValue() == null || condition.getValue().contains(value)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -33,12 +33,51 @@ import net.morbz.osmonaut.osm.Entity;
  */
 public interface OsmonautSink {
 	/**
-	 * The parser found an entity. Ways come with placeholder nodes in it that 
-	 * just have an ID. Relations come with placeholder members that just have
-	 * a role and an ID.
+	 * Checks if the receiver needs the entity. With parallel filtering this
+	 * is called by the decoder threads and must be thread-safe.
 	 * 
 	 * @param entity
 	 *            The parsed entity
+	 * @return True if the receiver needs the entity
 	 */
-	public void foundEntity(Entity entity);
+	public boolean isNeededByReceiver(Entity entity);
+
+	/**
+	 * Checks if the entity is needed as a part of another entity, e.g. as a
+	 * member of a relation. With parallel filtering this is called by the 
+	 * decoder threads and must be thread-safe.
+	 * 
+	 * @param entity
+	 *            The parsed entity
+	 * @return True if the entity is needed as a part of another entity
+	 */
+	public boolean isNeededAsMember(Entity entity);
+
+	/**
+	 * Handles a needed entity in the decoder thread that parsed it, e.g. to 
+	 * collect member IDs or to assemble the entity in parallel. This is only
+	 * called with parallel filtering and must be thread-safe.
+	 * 
+	 * @param entity
+	 *            The parsed entity
+	 * @param neededByReceiver
+	 *            Whether the receiver needs the entity, otherwise it is only
+	 *            needed as a member
+	 * @return The entity that should be passed to foundEntity() in its place,
+	 *         or null if nothing should be passed on
+	 */
+	public Entity foundEntityInDecoder(Entity entity, boolean neededByReceiver);
+
+	/**
+	 * The parser found a needed entity. Ways come with placeholder nodes in it
+	 * that just have an ID. Relations come with placeholder members that just 
+	 * have a role and an ID.
+	 * 
+	 * @param entity
+	 *            The parsed entity
+	 * @param neededByReceiver
+	 *            Whether the receiver needs the entity, otherwise it is only
+	 *            needed as a member
+	 */
+	public void foundEntity(Entity entity, boolean neededByReceiver);
 }
@@ -0,0 +1,310 @@
+package net.morbz.osmonaut.binary.pbf;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+
+import io.airlift.compress.Decompressor;
+import io.airlift.compress.MalformedInputException;
+import io.airlift.compress.lz4.Lz4Decompressor;
+import io.airlift.compress.zstd.ZstdDecompressor;
+
+/**
+ * Unpacks the content of PBF blobs. The blob message is parsed directly from
+ * the raw blob buffer and the content is inflated into a buffer that is reused
+ * for the next blob, as is the inflater. So an instance must only be used by 
+ * one thread at a time, and the content of a blob is only valid until the 
+ * next blob is decompressed. The native memory of the inflater is freed with
+ * end().
+ */
+public class BlobDecompressor {
+	// Estimated native memory of an inflater: the zlib state and a 32 KB window
+	private static final long INFLATER_NATIVE_MEMORY = 40 * 1024;
+	// Buffers are allocated with a minimum size to avoid repeated growing
+	private static final int MIN_BUFFER_SIZE = 64 * 1024;
+
+	// Field numbers as defined in fileformat.proto. LZ4 and ZSTD were added to
+	// the format later and are not part of the generated Blob class.
+	private static final int BLOB_RAW = 1;
+	private static final int BLOB_RAW_SIZE = 2;
+	private static final int BLOB_ZLIB_DATA = 3;
+	private static final int BLOB_LZ4_DATA = 6;
+	private static final int BLOB_ZSTD_DATA = 7;
+
+	private Inflater inflater;
+	private Lz4Decompressor lz4Decompressor;
+	private ZstdDecompressor zstdDecompressor;
+	private byte[] inputBuffer = new byte[0];
+	private byte[] outputBuffer = new byte[0];
+
+	private byte[] content;
+	private int contentOffset;
+	private int contentLength;
+
+	// Only written by the thread that uses the decompressor
+	private volatile long nativeMemoryHeld;
+	private volatile long bufferMemoryHeld;
+
+	/**
+	 * Decompresses the given raw blob.
+	 * 
+	 * @param rawBlob The raw blob data. The buffer is not modified.
+	 * @throws IOException If the blob is malformed
+	 */
+	public void decompress(ByteBuffer rawBlob) throws IOException {
+		ByteBuffer in = rawBlob.duplicate();
+
+		// Find the fields of the blob message
+		int rawSize = -1;
+		int dataField = 0;
+		int dataStart = 0;
+		int dataLength = 0;
+		while(in.hasRemaining()) {
+			int tag = (int)readVarint(in);
+			switch(WireFormat.getTagWireType(tag)) {
+			case WireFormat.WIRETYPE_VARINT:
+				long value = readVarint(in);
+				if(WireFormat.getTagFieldNumber(tag) == BLOB_RAW_SIZE) {
+					rawSize = (int)value;
+				}
+				break;
+			case WireFormat.WIRETYPE_LENGTH_DELIMITED:
+				int length = (int)readVarint(in);
+				if(length < 0 || length > in.remaining()) {
+					throw new EOFException("PBF blob is truncated.");
+				}
+				int fieldNumber = WireFormat.getTagFieldNumber(tag);
+				if(fieldNumber == BLOB_RAW || fieldNumber == BLOB_ZLIB_DATA || 
+						fieldNumber == BLOB_LZ4_DATA || fieldNumber == BLOB_ZSTD_DATA) {
+					dataField = fieldNumber;
+					dataStart = in.position();
+					dataLength = length;
+				}
+				in.position(in.position() + length);
+				break;
+			case WireFormat.WIRETYPE_FIXED64:
+				in.position(in.position() + 8);
+				break;
+			case WireFormat.WIRETYPE_FIXED32:
+				in.position(in.position() + 4);
+				break;
+			default:
+				throw new IOException("PBF blob is malformed.");
+			}
+		}
+
+		// Unpack the content
+		switch(dataField) {
+		case BLOB_RAW:
+			readRaw(rawBlob, dataStart, dataLength);
+			break;
+		case BLOB_ZLIB_DATA:
+			inflate(rawBlob, dataStart, dataLength, rawSize);
+			break;
+		case BLOB_LZ4_DATA:
+			if(lz4Decompressor == null) {
+				lz4Decompressor = new Lz4Decompressor();
+			}
+			decompress(lz4Decompressor, rawBlob, dataStart, dataLength, rawSize);
+			break;
+		case BLOB_ZSTD_DATA:
+			if(zstdDecompressor == null) {
+				zstdDecompressor = new ZstdDecompressor();
+			}
+			decompress(zstdDecompressor, rawBlob, dataStart, dataLength, rawSize);
+			break;
+		default:
+			throw new RuntimeException(
+					"PBF blob uses unsupported compression, only raw, zlib, lz4 or zstd may be used.");
+		}
+	}
+
+	private void readRaw(ByteBuffer rawBlob, int start, int length) {
+		if(rawBlob.hasArray()) {
+			// Use the content in place
+			content = rawBlob.array();
+			contentOffset = rawBlob.arrayOffset() + start;
+		} else {
+			outputBuffer = ensureCapacity(outputBuffer, length);
+			copy(rawBlob, start, length, outputBuffer);
+			content = outputBuffer;
+			contentOffset = 0;
+		}
+		contentLength = length;
+	}
+
+	private void inflate(ByteBuffer rawBlob, int start, int length, int rawSize) {
+		if(rawSize < 0) {
+			throw new RuntimeException("PBF blob is missing the uncompressed size.");
+		}
+
+		// Set input
+		if(inflater == null) {
+			inflater = new Inflater();
+			nativeMemoryHeld = INFLATER_NATIVE_MEMORY;
+		}
+		inflater.reset();
+		if(rawBlob.hasArray()) {
+			inflater.setInput(rawBlob.array(), rawBlob.arrayOffset() + start, length);
+		} else {
+			// The inflater can only read from arrays
+			inputBuffer = ensureCapacity(inputBuffer, length);
+			copy(rawBlob, start, length, inputBuffer);
+			inflater.setInput(inputBuffer, 0, length);
+		}
+
+		// Inflate
+		outputBuffer = ensureCapacity(outputBuffer, rawSize);
+		try {
+			inflater.inflate(outputBuffer, 0, rawSize);
+		} catch (DataFormatException e) {
+			throw new RuntimeException("Unable to decompress PBF blob.", e);
+		}
+		if (!inflater.finished()) {
+			throw new RuntimeException("PBF blob contains incomplete compressed data.");
+		}
+
+		content = outputBuffer;
+		contentOffset = 0;
+		contentLength = rawSize;
+	}
+
+	private void decompress(Decompressor decompressor, ByteBuffer rawBlob, int start, int length, 
+			int rawSize) {
+		if(rawSize < 0) {
+			throw new RuntimeException("PBF blob is missing the uncompressed size.");
+		}
+
+		// Get input
+		byte[] input;
+		int inputOffset;
+		if(rawBlob.hasArray()) {
+			input = rawBlob.array();
+			inputOffset = rawBlob.arrayOffset() + start;
+		} else {
+			inputBuffer = ensureCapacity(inputBuffer, length);
+			copy(rawBlob, start, length, inputBuffer);
+			input = inputBuffer;
+			inputOffset = 0;
+		}
+
+		// Decompress
+		outputBuffer = ensureCapacity(outputBuffer, rawSize);
+		int size;
+		try {
+			size = decompressor.decompress(input, inputOffset, length, outputBuffer, 0, rawSize);
+		} catch (MalformedInputException e) {
+			throw new RuntimeException("Unable to decompress PBF blob.", e);
+		}
+		if(size != rawSize) {
+			throw new RuntimeException("PBF blob contains incomplete compressed data.");
+		}
+
+		content = outputBuffer;
+		contentOffset = 0;
+		contentLength = rawSize;
+	}
+
+	/**
+	 * Returns a new stream on the content of the last decompressed blob. The
+	 * stream must be consumed before the next blob is decompressed. Messages
+	 * parsed from it copy their bytes fields, so they stay valid afterwards.
+	 * 
+	 * @return The stream
+	 */
+	public CodedInputStream getContent() {
+		return CodedInputStream.newInstance(content, contentOffset, contentLength);
+	}
+
+	private static long readVarint(ByteBuffer in) {
+		long value = 0;
+		for(int shift = 0; shift < 64; shift += 7) {
+			byte b = in.get();
+			value |= (long)(b & 0x7f) << shift;
+			if((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new RuntimeException("PBF blob contains a malformed varint.");
+	}
+
+	private static void copy(ByteBuffer source, int start, int length, byte[] target) {
+		ByteBuffer region = source.duplicate();
+		region.position(start);
+		region.get(target, 0, length);
+	}
+
+	/**
+	 * Frees the native memory of the inflater and drops the buffers. The 
+	 * decompressor can still be used afterwards. Like decompress(), it must 
+	 * only be called by one thread at a time.
+	 */
+	public void end() {
+		if(inflater != null) {
+			inflater.end();
+			inflater = null;
+			nativeMemoryHeld = 0;
+		}
+		bufferMemoryHeld = 0;
+		inputBuffer = new byte[0];
+		outputBuffer = new byte[0];
+		content = null;
+	}
+
+	/**
+	 * @return The estimated native memory in bytes held by the inflater
+	 */
+	public long getNativeMemoryHeld() {
+		return nativeMemoryHeld;
+	}
+
+	/**
+	 * @return The heap memory in bytes held by the buffers
+	 */
+	public long getBufferMemoryHeld() {
+		return bufferMemoryHeld;
+	}
+
+	private byte[] ensureCapacity(byte[] buffer, int size) {
+		if(buffer.length >= size) {
+			return buffer;
+		}
+
+		// Grow to the next power of two
+		int newSize = Math.max(MIN_BUFFER_SIZE, Integer.highestOneBit(size));
+		if(newSize < size) {
+			newSize = newSize <= Integer.MAX_VALUE / 2 ? newSize * 2 : size;
+		}
+		bufferMemoryHeld += newSize - buffer.length;
+		return new byte[newSize];
+	}
+}
@@ -0,0 +1,131 @@
+package net.morbz.osmonaut.binary.pbf;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Provides one blob decompressor per thread, so that each decoder thread 
+ * reuses its inflater and buffers for all of its blobs. Threads created by the
+ * thread factory of this pool release their decompressor when they terminate, 
+ * which frees the native memory of the inflater right away instead of at 
+ * finalization.
+ */
+public class BlobDecompressorPool {
+	private Set<BlobDecompressor> decompressors = 
+			Collections.newSetFromMap(new ConcurrentHashMap<BlobDecompressor, Boolean>());
+	private ThreadLocal<BlobDecompressor> threadDecompressors = new ThreadLocal<BlobDecompressor>() {
+		@Override
+		protected BlobDecompressor initialValue() {
+			BlobDecompressor decompressor = new BlobDecompressor();
+			decompressors.add(decompressor);
+			return decompressor;
+		}
+	};
+	private AtomicInteger threadCount = new AtomicInteger();
+
+	/**
+	 * @return The decompressor of the calling thread
+	 */
+	public BlobDecompressor get() {
+		return threadDecompressors.get();
+	}
+
+	/**
+	 * Releases the decompressor of the calling thread.
+	 */
+	public void release() {
+		BlobDecompressor decompressor = threadDecompressors.get();
+		threadDecompressors.remove();
+		decompressors.remove(decompressor);
+		decompressor.end();
+	}
+
+	/**
+	 * Releases the decompressors of all threads. Must only be called when no
+	 * thread is decompressing.
+	 */
+	public void releaseAll() {
+		for(BlobDecompressor decompressor : decompressors) {
+			decompressors.remove(decompressor);
+			decompressor.end();
+		}
+	}
+
+	/**
+	 * @return The estimated native memory in bytes held by the inflaters of 
+	 * the decompressors of this pool
+	 */
+	public long getNativeMemoryHeld() {
+		long memory = 0;
+		for(BlobDecompressor decompressor : decompressors) {
+			memory += decompressor.getNativeMemoryHeld();
+		}
+		return memory;
+	}
+
+	/**
+	 * @return The heap memory in bytes held by the buffers of the 
+	 * decompressors of this pool
+	 */
+	public long getBufferMemoryHeld() {
+		long memory = 0;
+		for(BlobDecompressor decompressor : decompressors) {
+			memory += decompressor.getBufferMemoryHeld();
+		}
+		return memory;
+	}
+
+	/**
+	 * @return A thread factory for decoder threads. The threads release their
+	 * decompressor when they terminate.
+	 */
+	public ThreadFactory getThreadFactory() {
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				Runnable worker = new Runnable() {
+					@Override
+					public void run() {
+						try {
+							runnable.run();
+						} finally {
+							release();
+						}
+					}
+				};
+				Thread thread = new Thread(worker, "osmonaut-decoder-" + threadCount.incrementAndGet());
+
+				// A decoder that isn't closed must not keep the JVM alive
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
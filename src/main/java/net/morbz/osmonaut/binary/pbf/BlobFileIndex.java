@@ -0,0 +1,100 @@
+package net.morbz.osmonaut.binary.pbf;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import net.morbz.osmonaut.EntityFilter;
+import net.morbz.osmonaut.osm.EntityType;
+
+/**
+ * Describes a blob in the PBF file: where it is located, which entity types it
+ * contains and the range of the contained entity IDs.
+ */
+public class BlobFileIndex {
+	private long fileOffset;
+	private int blobSize;
+	private EntityFilter containedTypes;
+	private long minId;
+	private long maxId;
+
+	/**
+	 * @param fileOffset The position from the beginning of the PBF file in 
+	 * bytes where the blob starts
+	 * @param blobSize The size of the blob in bytes
+	 * @param containedTypes The entity types that the blob contains
+	 * @param minId The lowest ID of all entities in the blob
+	 * @param maxId The highest ID of all entities in the blob
+	 */
+	public BlobFileIndex(long fileOffset, int blobSize, EntityFilter containedTypes, long minId, long maxId) {
+		this.fileOffset = fileOffset;
+		this.blobSize = blobSize;
+		this.containedTypes = containedTypes;
+		this.minId = minId;
+		this.maxId = maxId;
+	}
+
+	/**
+	 * @return The position from the beginning of the PBF file in bytes where 
+	 * the blob starts
+	 */
+	public long getFileOffset() {
+		return fileOffset;
+	}
+
+	/**
+	 * @return The size of the blob in bytes
+	 */
+	public int getBlobSize() {
+		return blobSize;
+	}
+
+	/**
+	 * @param type The entity type
+	 * @return True if the blob contains entities of this type
+	 */
+	public boolean containsType(EntityType type) {
+		return containedTypes.getEntityEnabled(type);
+	}
+
+	/**
+	 * @return The entity types that the blob contains
+	 */
+	public EntityFilter getContainedTypes() {
+		return containedTypes;
+	}
+
+	/**
+	 * @return The lowest ID of all entities in the blob
+	 */
+	public long getMinId() {
+		return minId;
+	}
+
+	/**
+	 * @return The highest ID of all entities in the blob
+	 */
+	public long getMaxId() {
+		return maxId;
+	}
+}
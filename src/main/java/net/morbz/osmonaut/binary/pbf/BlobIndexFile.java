@@ -0,0 +1,164 @@
+package net.morbz.osmonaut.binary.pbf;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.morbz.osmonaut.EntityFilter;
+import net.morbz.osmonaut.osm.EntityType;
+
+/**
+ * Stores the blob index of a PBF file in a small file next to it, so that
+ * later scans of the same file don't have to read all blobs to find out which
+ * blobs contain which entity types. The size and modification time of the 
+ * PBF file are stored as well, to detect when the index is outdated.
+ */
+public class BlobIndexFile {
+	private static final int MAGIC = 0x4f534d49; // "OSMI"
+	private static final int VERSION = 1;
+
+	private static final int NODE_FLAG = 1;
+	private static final int WAY_FLAG = 2;
+	private static final int RELATION_FLAG = 4;
+
+	private File indexFile;
+	private File pbfFile;
+
+	/**
+	 * @param pbfFile The PBF file that is indexed
+	 */
+	public BlobIndexFile(File pbfFile) {
+		this.pbfFile = pbfFile;
+		this.indexFile = new File(pbfFile.getPath() + ".osmonaut-index");
+	}
+
+	/**
+	 * @return The file that holds the index
+	 */
+	public File getFile() {
+		return indexFile;
+	}
+
+	/**
+	 * Reads the index.
+	 * 
+	 * @return The indexed blobs in file order or null if there is no index
+	 * or the index doesn't match the PBF file
+	 * @throws IOException If the index can't be read
+	 */
+	public List<BlobFileIndex> read() throws IOException {
+		if(!indexFile.exists()) {
+			return null;
+		}
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+		try {
+			// Validate
+			if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return null;
+			}
+			if(in.readLong() != pbfFile.length() || in.readLong() != pbfFile.lastModified()) {
+				return null;
+			}
+
+			// Read blobs
+			int count = in.readInt();
+			List<BlobFileIndex> blobs = new ArrayList<BlobFileIndex>(count);
+			for(int i = 0; i < count; i++) {
+				long fileOffset = in.readLong();
+				int blobSize = in.readInt();
+				EntityFilter containedTypes = decodeTypes(in.readByte());
+				long minId = in.readLong();
+				long maxId = in.readLong();
+				blobs.add(new BlobFileIndex(fileOffset, blobSize, containedTypes, minId, maxId));
+			}
+			return blobs;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes the index. The index is written to a temporary file first, so that
+	 * a failed write never leaves a broken index behind.
+	 * 
+	 * @param blobs The indexed blobs in file order
+	 * @throws IOException If the index can't be written
+	 */
+	public void write(List<BlobFileIndex> blobs) throws IOException {
+		File tempFile = new File(indexFile.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(pbfFile.length());
+			out.writeLong(pbfFile.lastModified());
+
+			out.writeInt(blobs.size());
+			for(BlobFileIndex blob : blobs) {
+				out.writeLong(blob.getFileOffset());
+				out.writeInt(blob.getBlobSize());
+				out.writeByte(encodeTypes(blob.getContainedTypes()));
+				out.writeLong(blob.getMinId());
+				out.writeLong(blob.getMaxId());
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private int encodeTypes(EntityFilter types) {
+		int flags = 0;
+		if(types.getEntityEnabled(EntityType.NODE)) {
+			flags |= NODE_FLAG;
+		}
+		if(types.getEntityEnabled(EntityType.WAY)) {
+			flags |= WAY_FLAG;
+		}
+		if(types.getEntityEnabled(EntityType.RELATION)) {
+			flags |= RELATION_FLAG;
+		}
+		return flags;
+	}
+
+	private EntityFilter decodeTypes(int flags) {
+		return new EntityFilter(
+				(flags & NODE_FLAG) != 0, 
+				(flags & WAY_FLAG) != 0, 
+				(flags & RELATION_FLAG) != 0);
+	}
+}
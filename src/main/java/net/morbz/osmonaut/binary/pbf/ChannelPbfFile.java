@@ -0,0 +1,128 @@
+package net.morbz.osmonaut.binary.pbf;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads a PBF file with positional reads on a file channel. Other than with
+ * RandomAccessFile.seek() there is no shared file pointer, so every decoder
+ * thread can read its own blobs. Each thread reads into its own buffer that is
+ * reused for the next read of that thread. The buffers are freed on close, 
+ * also those of threads that outlive the file, e.g. of a shared executor.
+ */
+public class ChannelPbfFile extends PbfFile {
+	private FileChannel channel;
+	private long size;
+	private Set<ReadBuffer> buffers = Collections.newSetFromMap(new ConcurrentHashMap<ReadBuffer, Boolean>());
+	private ThreadLocal<ReadBuffer> threadBuffers = new ThreadLocal<ReadBuffer>() {
+		@Override
+		protected ReadBuffer initialValue() {
+			ReadBuffer buffer = new ReadBuffer();
+			buffers.add(buffer);
+			return buffer;
+		}
+	};
+
+	/**
+	 * @param file The PBF file to read
+	 * @throws IOException If the file can't be opened
+	 */
+	public ChannelPbfFile(File file) throws IOException {
+		// Closing the channel also closes the file
+		@SuppressWarnings("resource")
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		channel = randomAccessFile.getChannel();
+		size = channel.size();
+	}
+
+	/**
+	 * {@inheritDoc} The returned buffer is only valid until the next read of
+	 * the calling thread.
+	 */
+	@Override
+	public ByteBuffer read(long offset, int length) throws IOException {
+		checkRegion(offset, length);
+
+		// Get/grow buffer of this thread
+		ReadBuffer readBuffer = threadBuffers.get();
+		ByteBuffer buffer = readBuffer.buffer;
+		if(buffer == null || buffer.capacity() < length) {
+			buffer = ByteBuffer.allocate(length);
+			readBuffer.buffer = buffer;
+		}
+		buffer.clear();
+		buffer.limit(length);
+
+		// Read until the buffer is full
+		long position = offset;
+		while(buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if(read < 0) {
+				throw new EOFException();
+			}
+			position += read;
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * {@inheritDoc} Frees the buffers of all threads. Must only be called 
+	 * when no thread is reading.
+	 */
+	@Override
+	public void close() throws IOException {
+		for(ReadBuffer buffer : buffers) {
+			buffer.buffer = null;
+		}
+		buffers.clear();
+		channel.close();
+	}
+
+	/**
+	 * The buffer of a thread. The thread keeps the holder until it 
+	 * terminates, but not the buffer after the file has been closed.
+	 */
+	private static class ReadBuffer {
+		private ByteBuffer buffer;
+	}
+}
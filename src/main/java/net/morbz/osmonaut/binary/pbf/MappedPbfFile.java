@@ -0,0 +1,112 @@
+package net.morbz.osmonaut.binary.pbf;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Maps a PBF file into memory. A single mapping is limited to 2 GB, so the
+ * file is mapped in segments. The segments overlap by the maximum blob size,
+ * so that every blob lies completely within one segment and can be handed out
+ * as a slice without copying. Reading is left to the OS page cache.
+ */
+public class MappedPbfFile extends PbfFile {
+	private static final long SEGMENT_SIZE = 1L << 30;
+	// Maximum size of a blob header (64 KB) and a blob (32 MB) including the
+	// header length, as defined by the PBF format
+	private static final long SEGMENT_OVERLAP = 64L << 20;
+
+	private FileChannel channel;
+	private MappedByteBuffer[] segments;
+	private long size;
+
+	/**
+	 * @param file The PBF file to map
+	 * @throws IOException If the file can't be opened or mapped
+	 */
+	public MappedPbfFile(File file) throws IOException {
+		// Closing the channel also closes the file
+		@SuppressWarnings("resource")
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		channel = randomAccessFile.getChannel();
+		size = channel.size();
+
+		// Map segments
+		int segmentCount = (int)((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+		segments = new MappedByteBuffer[segmentCount];
+		for(int i = 0; i < segmentCount; i++) {
+			long start = i * SEGMENT_SIZE;
+			long length = Math.min(SEGMENT_SIZE + SEGMENT_OVERLAP, size - start);
+			segments[i] = channel.map(MapMode.READ_ONLY, start, length);
+		}
+	}
+
+	/**
+	 * {@inheritDoc} The returned buffer is a view of the mapping, no data is
+	 * copied.
+	 */
+	@Override
+	public ByteBuffer read(long offset, int length) throws IOException {
+		checkRegion(offset, length);
+
+		// Get segment
+		int segmentId = (int)(offset / SEGMENT_SIZE);
+		int position = (int)(offset - segmentId * SEGMENT_SIZE);
+		ByteBuffer segment = segments[segmentId];
+		if(position + length > segment.capacity()) {
+			// Larger than allowed by the format, map separately
+			return channel.map(MapMode.READ_ONLY, offset, length);
+		}
+
+		// Create slice
+		ByteBuffer buffer = segment.duplicate();
+		buffer.position(position);
+		buffer.limit(position + length);
+		return buffer.slice();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * {@inheritDoc} The mappings are released by the garbage collector.
+	 */
+	@Override
+	public void close() throws IOException {
+		segments = null;
+		channel.close();
+	}
+}
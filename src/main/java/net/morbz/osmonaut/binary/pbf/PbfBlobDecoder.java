@@ -5,15 +5,15 @@ package net.morbz.osmonaut.binary.pbf;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
 
-import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.CodedInputStream;
 
 import net.morbz.osmonaut.EntityFilter;
-import net.morbz.osmonaut.binary.pbf.proto.Fileformat.Blob;
+import net.morbz.osmonaut.TagFilter;
+import net.morbz.osmonaut.binary.OsmonautSink;
 import net.morbz.osmonaut.binary.pbf.proto.Osmformat;
 import net.morbz.osmonaut.binary.pbf.proto.Osmformat.PrimitiveBlock;
 import net.morbz.osmonaut.binary.pbf.proto.Osmformat.PrimitiveBlock.PrimitiveGroup;
@@ -37,59 +37,58 @@ import net.morbz.osmonaut.osm.Tags;
  * @author Merten Peetz
  */
 public class PbfBlobDecoder implements Runnable {
-	private String blobType;
-	private byte[] rawBlob;
+	private static final int[] NO_TAGS = new int[0];
+
+	private PbfRawBlob rawBlob;
+	private BlobDecompressorPool decompressors;
 	private PbfBlobDecoderListener listener;
 	private List<Entity> decodedEntities;
+	private BitSet neededByReceiver;
+	private OsmonautSink filterSink;
 	private EntityType entityType;
+	private TagFilter tagFilter;
+	private boolean indexing;
 	private PbfFieldDecoder fieldDecoder;
+	private PbfTagMatcher tagMatcher;
 	private EntityFilter containedTypes = new EntityFilter(false, false, false);
+	private long minId = Long.MAX_VALUE;
+	private long maxId = Long.MIN_VALUE;
 
 	/**
 	 * Creates a new instance.
 	 * 
-	 * @param blobType
-	 *            The type of blob.
 	 * @param rawBlob
-	 *            The raw data of the blob.
+	 *            The raw blob. Its data is read by the decoding thread.
+	 * @param decompressors
+	 *            The pool that provides the decompressor of the decoding 
+	 *            thread.
 	 * @param listener
 	 *            The listener for receiving decoding results.
 	 * @param type
 	 *            The entity of which entities will be returned.
+	 * @param tagFilter
+	 *            Only entities that match this filter will be returned. May be
+	 *            null to return all entities.
+	 * @param filterSink
+	 *            The sink that decides which entities are needed. May be null
+	 *            if the entities are filtered later.
+	 * @param indexing
+	 *            Whether the contained types and ID range of the blob are 
+	 *            needed for the index.
 	 */
-	public PbfBlobDecoder(String blobType, byte[] rawBlob, PbfBlobDecoderListener listener, EntityType type) {
-		this.blobType = blobType;
+	public PbfBlobDecoder(PbfRawBlob rawBlob, BlobDecompressorPool decompressors, 
+			PbfBlobDecoderListener listener, EntityType type, TagFilter tagFilter, 
+			OsmonautSink filterSink, boolean indexing) {
 		this.rawBlob = rawBlob;
+		this.decompressors = decompressors;
 		this.listener = listener;
 		this.entityType = type;
+		this.tagFilter = tagFilter;
+		this.filterSink = filterSink;
+		this.indexing = indexing;
 	}
 
-	private byte[] readBlobContent() throws IOException {
-		Blob blob = Blob.parseFrom(rawBlob);
-		byte[] blobData;
-
-		if (blob.hasRaw()) {
-			blobData = blob.getRaw().toByteArray();
-		} else if (blob.hasZlibData()) {
-			Inflater inflater = new Inflater();
-			inflater.setInput(blob.getZlibData().toByteArray());
-			blobData = new byte[blob.getRawSize()];
-			try {
-				inflater.inflate(blobData);
-			} catch (DataFormatException e) {
-				throw new RuntimeException("Unable to decompress PBF blob.", e);
-			}
-			if (!inflater.finished()) {
-				throw new RuntimeException("PBF blob contains incomplete compressed data.");
-			}
-		} else {
-			throw new RuntimeException("PBF blob uses unsupported compression, only raw or zlib may be used.");
-		}
-
-		return blobData;
-	}
-
-	private void processOsmHeader(byte[] data) throws InvalidProtocolBufferException {
+	private void processOsmHeader(CodedInputStream data) throws IOException {
 		Osmformat.HeaderBlock header = Osmformat.HeaderBlock.parseFrom(data);
 
 		// Build the list of active and unsupported features in the file.
@@ -112,34 +111,70 @@ public class PbfBlobDecoder implements Runnable {
 		}
 	}
 
-	private Tags buildTags(List<Integer> keys, List<Integer> values) {
+	private int[] buildKeysValues(List<Integer> keys, List<Integer> values) {
 		// Ensure parallel lists are of equal size.
 		if (keys.size() != values.size()) {
 			throw new RuntimeException("Number of tag keys (" + keys.size() + ") and tag values ("
 					+ values.size() + ") don't match");
 		}
+		if (keys.isEmpty()) {
+			return NO_TAGS;
+		}
 
-		Tags tags = new Tags();
-		Iterator<Integer> keyIterator = keys.iterator();
-		Iterator<Integer> valueIterator = values.iterator();
-		while (keyIterator.hasNext()) {
-			String key = fieldDecoder.decodeString(keyIterator.next());
-			String value = fieldDecoder.decodeString(valueIterator.next());
-			tags.set(key, value);
+		int[] keysValues = new int[keys.size() * 2];
+		for (int i = 0; i < keys.size(); i++) {
+			keysValues[i * 2] = keys.get(i);
+			keysValues[i * 2 + 1] = values.get(i);
+		}
+		return keysValues;
+	}
+
+	private boolean isMatching(int[] keysValues) {
+		return tagMatcher == null || tagMatcher.matches(keysValues);
+	}
+
+	private Tags buildTags(int[] keysValues) {
+		// The strings are only decoded when the tags are accessed
+		if (keysValues.length == 0) {
+			return null;
+		}
+		return new PbfTags(fieldDecoder, keysValues);
+	}
+
+	private void addEntity(Entity entity) {
+		// Drop entities that are not needed, so that only the needed ones are
+		// passed back to the sink
+		if (filterSink != null) {
+			boolean neededByReceiver = filterSink.isNeededByReceiver(entity);
+			if (!neededByReceiver && !filterSink.isNeededAsMember(entity)) {
+				return;
+			}
+			entity = filterSink.foundEntityInDecoder(entity, neededByReceiver);
+			if (entity == null) {
+				return;
+			}
+			if (neededByReceiver) {
+				this.neededByReceiver.set(decodedEntities.size());
+			}
 		}
-		return tags;
+		decodedEntities.add(entity);
 	}
 
 	private void processNodes(List<Node> nodes) {
 		for (Node node : nodes) {
+			int[] keysValues = buildKeysValues(node.getKeysList(), node.getValsList());
+			if (!isMatching(keysValues)) {
+				continue;
+			}
+
 			// Create node
 			long id = node.getId();
-			Tags tags = buildTags(node.getKeysList(), node.getValsList());
+			Tags tags = buildTags(keysValues);
 			LatLon latlon = new LatLon(node.getLat(), node.getLon());
 			net.morbz.osmonaut.osm.Node osmNode = new net.morbz.osmonaut.osm.Node(id, tags, latlon);
 
 			// Add to results
-			decodedEntities.add(osmNode);
+			addEntity(osmNode);
 		}
 	}
 
@@ -154,7 +189,8 @@ public class PbfBlobDecoder implements Runnable {
 			+ "), and longitudes (" + lonList.size() + ") don't match");
 		}
 
-		Iterator<Integer> keysValuesIterator = nodes.getKeysValsList().iterator();
+		List<Integer> keysValuesList = nodes.getKeysValsList();
+		int keysValuesPosition = 0;
 		long nodeId = 0;
 		long latitude = 0;
 		long longitude = 0;
@@ -164,23 +200,33 @@ public class PbfBlobDecoder implements Runnable {
 			latitude += latList.get(i);
 			longitude += lonList.get(i);
 
-			// Build the tags. The key and value string indexes are sequential
+			// Find the tags. The key and value string indexes are sequential
 			// in the same PBF array. Each set of tags is delimited by an index
 			// with a value of 0.
-			Tags tags = new Tags();
-			while (keysValuesIterator.hasNext()) {
-				int keyIndex = keysValuesIterator.next();
+			int tagsStart = keysValuesPosition;
+			while (keysValuesPosition < keysValuesList.size()) {
+				int keyIndex = keysValuesList.get(keysValuesPosition);
 				if (keyIndex == 0) {
 					break;
 				}
-				if (!keysValuesIterator.hasNext()) {
+				if (keysValuesPosition + 1 == keysValuesList.size()) {
 					throw new RuntimeException(
 							"The PBF DenseInfo keys/values list contains a key with no corresponding value.");
 				}
-				int valueIndex = keysValuesIterator.next();
-
-				tags.set(fieldDecoder.decodeString(keyIndex), fieldDecoder.decodeString(valueIndex));
+				keysValuesPosition += 2;
+			}
+			int[] keysValues = NO_TAGS;
+			if (keysValuesPosition > tagsStart) {
+				keysValues = new int[keysValuesPosition - tagsStart];
+				for (int j = 0; j < keysValues.length; j++) {
+					keysValues[j] = keysValuesList.get(tagsStart + j);
+				}
 			}
+			keysValuesPosition++;
+			if (!isMatching(keysValues)) {
+				continue;
+			}
+			Tags tags = buildTags(keysValues);
 
 			// Create node
 			LatLon latlon = new LatLon(
@@ -189,12 +235,17 @@ public class PbfBlobDecoder implements Runnable {
 			net.morbz.osmonaut.osm.Node osmNode = new net.morbz.osmonaut.osm.Node(nodeId, tags, latlon);
 
 			// Add to results
-			decodedEntities.add(osmNode);
+			addEntity(osmNode);
 		}
 	}
 
 	private void processWays(List<Way> ways) {
 		for (Way way : ways) {
+			int[] keysValues = buildKeysValues(way.getKeysList(), way.getValsList());
+			if (!isMatching(keysValues)) {
+				continue;
+			}
+
 			// Build up the list of way nodes for the way. The node ids are
 			// delta encoded meaning that each id is stored as a delta against
 			// the previous one.
@@ -207,16 +258,21 @@ public class PbfBlobDecoder implements Runnable {
 
 			// Create way
 			long id = way.getId();
-			Tags tags = buildTags(way.getKeysList(), way.getValsList());
+			Tags tags = buildTags(keysValues);
 			net.morbz.osmonaut.osm.Way osmWay = new net.morbz.osmonaut.osm.Way(id, tags, wayNodes);
 
 			// Add to results
-			decodedEntities.add(osmWay);
+			addEntity(osmWay);
 		}
 	}
 
 	private void processRelations(List<Relation> relations) {
 		for (Relation relation : relations) {
+			int[] keysValues = buildKeysValues(relation.getKeysList(), relation.getValsList());
+			if (!isMatching(keysValues)) {
+				continue;
+			}
+
 			List<Long> memberIds = relation.getMemidsList();
 			List<Integer> memberRoles = relation.getRolesSidList();
 			List<MemberType> memberTypes = relation.getTypesList();
@@ -266,25 +322,47 @@ public class PbfBlobDecoder implements Runnable {
 
 			// Create relation
 			long id = relation.getId();
-			Tags tags = buildTags(relation.getKeysList(), relation.getValsList());
+			Tags tags = buildTags(keysValues);
 			net.morbz.osmonaut.osm.Relation osmRelation = 
 					new net.morbz.osmonaut.osm.Relation(id, tags, members, isIncomplete);
 
 			// Add to results
-			decodedEntities.add(osmRelation);
+			addEntity(osmRelation);
 		}
 	}
 
-	private void processOsmPrimitives(byte[] data) throws InvalidProtocolBufferException {
-		PrimitiveBlock block = PrimitiveBlock.parseFrom(data);
+	private void processOsmPrimitives(BlobDecompressor decompressor) throws IOException {
+		// While indexing, the block is classified first. Blocks without 
+		// entities of the requested type don't have to be decoded at all.
+		if (indexing) {
+			PbfBlockClassifier classifier = new PbfBlockClassifier();
+			classifier.classify(decompressor.getContent());
+			containedTypes = classifier.getContainedTypes();
+			minId = classifier.getMinId();
+			maxId = classifier.getMaxId();
+
+			if (!containedTypes.getEntityEnabled(entityType)) {
+				return;
+			}
+		}
+
+		PrimitiveBlock block = PrimitiveBlock.parseFrom(decompressor.getContent());
 		fieldDecoder = new PbfFieldDecoder(block);
 
+		// Resolve the tag filter against the string table of this block
+		boolean matchesNothing = false;
+		if (tagFilter != null && !tagFilter.isEmpty()) {
+			tagMatcher = new PbfTagMatcher(tagFilter, fieldDecoder);
+			matchesNothing = tagMatcher.matchesNothing();
+		}
+
 		for (PrimitiveGroup group : block.getPrimitivegroupList()) {
+
 			// Nodes
 			if(group.hasDense() || group.getNodesCount() > 0) {
 				containedTypes.setEntityEnabled(EntityType.NODE, true);
 
-				if(entityType == EntityType.NODE) {
+				if(entityType == EntityType.NODE && !matchesNothing) {
 					processNodes(group.getDense());
 					processNodes(group.getNodesList());
 				}
@@ -294,7 +372,7 @@ public class PbfBlobDecoder implements Runnable {
 			if(group.getWaysCount() > 0) {
 				containedTypes.setEntityEnabled(EntityType.WAY, true);
 
-				if(entityType == EntityType.WAY) {
+				if(entityType == EntityType.WAY && !matchesNothing) {
 					processWays(group.getWaysList());
 				}
 			}
@@ -304,7 +382,7 @@ public class PbfBlobDecoder implements Runnable {
 			if(group.getRelationsCount() > 0) {
 				containedTypes.setEntityEnabled(EntityType.RELATION, true);
 
-				if(entityType == EntityType.RELATION) {
+				if(entityType == EntityType.RELATION && !matchesNothing) {
 					processRelations(group.getRelationsList());
 				}
 			}
@@ -314,11 +392,19 @@ public class PbfBlobDecoder implements Runnable {
 	private void runAndTrapExceptions() {
 		try {
 			decodedEntities = new ArrayList<Entity>();
+			if (filterSink != null) {
+				neededByReceiver = new BitSet();
+			}
+
+			// Unpack the blob using the buffers of this thread
+			BlobDecompressor decompressor = decompressors.get();
+			decompressor.decompress(rawBlob.getData());
 
+			String blobType = rawBlob.getType();
 			if ("OSMHeader".equals(blobType)) {
-				processOsmHeader(readBlobContent());
+				processOsmHeader(decompressor.getContent());
 			} else if ("OSMData".equals(blobType)) {
-				processOsmPrimitives(readBlobContent());
+				processOsmPrimitives(decompressor);
 			}
 		} catch (IOException e) {
 			throw new RuntimeException("Unable to process PBF blob", e);
@@ -330,9 +416,12 @@ public class PbfBlobDecoder implements Runnable {
 		try {
 			runAndTrapExceptions();
 
-			listener.complete(decodedEntities, containedTypes);
-		} catch (RuntimeException e) {
-			listener.error();
+			BlobFileIndex blobIndex = new BlobFileIndex(rawBlob.getFileOffset(), rawBlob.getSize(), 
+					containedTypes, minId, maxId);
+			listener.complete(decodedEntities, neededByReceiver, blobIndex);
+		} catch (Throwable e) {
+			// Errors must complete the result too, or the sink waits forever
+			listener.error(e);
 		}
 	}
 }
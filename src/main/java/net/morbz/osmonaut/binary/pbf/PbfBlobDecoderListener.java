@@ -2,9 +2,9 @@
 
 package net.morbz.osmonaut.binary.pbf;
 
+import java.util.BitSet;
 import java.util.List;
 
-import net.morbz.osmonaut.EntityFilter;
 import net.morbz.osmonaut.osm.Entity;
 
 /**
@@ -16,17 +16,25 @@ import net.morbz.osmonaut.osm.Entity;
 public interface PbfBlobDecoderListener {
 	/**
 	 * Provides the listener with the list of decoded entities and the 
-	 * contained OSM types of the blob.
+	 * index information of the blob.
 	 * 
 	 * @param decodedEntities
 	 *            The decoded entities.
-	 * @param containedTypes
-	 *            The OSM entity types that the given blob contains.
+	 * @param neededByReceiver
+	 *            The positions of the entities that the receiver needs, or 
+	 *            null if the entities haven't been filtered.
+	 * @param blobIndex
+	 *            The position of the blob, its contained OSM entity types and
+	 *            the range of its entity IDs.
 	 */
-	void complete(List<Entity> decodedEntities, EntityFilter containedTypes);
+	void complete(List<Entity> decodedEntities, BitSet neededByReceiver, BlobFileIndex blobIndex);
 
 	/**
 	 * Notifies the listener that an error occurred during processing.
+	 * 
+	 * @param cause
+	 *            The error, which may have been thrown by the receiver if 
+	 *            the entities are filtered or received by the worker.
 	 */
-	void error();
+	void error(Throwable cause);
 }
@@ -2,46 +2,90 @@
 
 package net.morbz.osmonaut.binary.pbf;
 
+import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import net.morbz.osmonaut.osm.Entity;
 
 /**
- * Stores the results for a decoded Blob.
+ * Stores the results for a decoded Blob. The results are stored by a worker 
+ * thread and published to the waiting thread through a future.
  * 
  * @author Brett Henderson
+ * @author Merten Peetz
  */
 public class PbfBlobResult {
+	private final long sequence;
 	private List<Entity> entities;
-	private boolean complete;
+	private BitSet neededByReceiver;
+	private BlobFileIndex blobIndex;
 	private boolean success;
+	private Throwable failure;
+	private boolean delivered;
+	private final CompletableFuture<PbfBlobResult> completion = new CompletableFuture<PbfBlobResult>();
 
 	/**
 	 * Creates a new instance.
+	 * 
+	 * @param sequence
+	 *            The position of the blob in the scan.
 	 */
-	public PbfBlobResult() {
-		complete = false;
+	public PbfBlobResult(long sequence) {
+		this.sequence = sequence;
 		success = false;
 	}
 
+	/**
+	 * Gets the sequence number.
+	 * 
+	 * @return The position of the blob in the scan.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
 	/**
 	 * Stores the results of a successful blob decoding operation.
 	 * 
 	 * @param decodedEntities
 	 *            The entities from the blob.
+	 * @param neededByReceiver
+	 *            The positions of the entities that the receiver needs, or 
+	 *            null if the entities haven't been filtered.
+	 * @param blobIndex
+	 *            The index information of the blob.
 	 */
-	public void storeSuccessResult(List<Entity> decodedEntities) {
+	public void storeSuccessResult(List<Entity> decodedEntities, BitSet neededByReceiver, 
+			BlobFileIndex blobIndex) {
 		entities = decodedEntities;
-		complete = true;
+		this.neededByReceiver = neededByReceiver;
+		this.blobIndex = blobIndex;
 		success = true;
+		completion.complete(this);
 	}
 
 	/**
 	 * Stores a failure result for a blob decoding operation.
+	 * 
+	 * @param cause
+	 *            The error that occurred.
 	 */
-	public void storeFailureResult() {
-		complete = true;
+	public void storeFailureResult(Throwable cause) {
 		success = false;
+		failure = cause;
+		completion.completeExceptionally(cause);
+	}
+
+	/**
+	 * Gets the error of a failed blob decoding operation. This is only valid
+	 * after complete becomes true.
+	 * 
+	 * @return The error or null if successful.
+	 */
+	public Throwable getFailure() {
+		return failure;
 	}
 
 	/**
@@ -50,7 +94,42 @@ public class PbfBlobResult {
 	 * @return True if complete.
 	 */
 	public boolean isComplete() {
-		return complete;
+		return completion.isDone();
+	}
+
+	/**
+	 * Waits until the blob has been decoded.
+	 * 
+	 * @return This result.
+	 */
+	public PbfBlobResult awaitCompletion() {
+		try {
+			return completion.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Thread was interrupted.", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("A PBF decoding worker thread failed, aborting.", e.getCause());
+		}
+	}
+
+	/**
+	 * Gets the delivered flag. This is only used by the thread that passes 
+	 * the results on.
+	 * 
+	 * @return True if the entities have been passed on.
+	 */
+	public boolean isDelivered() {
+		return delivered;
+	}
+
+	/**
+	 * Marks the entities as passed on and drops them, so that a delivered 
+	 * result that waits to be indexed holds no memory.
+	 */
+	public void setDelivered() {
+		delivered = true;
+		entities = null;
+		neededByReceiver = null;
 	}
 
 	/**
@@ -71,4 +150,25 @@ public class PbfBlobResult {
 	public List<Entity> getEntities() {
 		return entities;
 	}
+
+	/**
+	 * Gets the positions of the entities that the receiver needs. This is only
+	 * valid after complete becomes true, and if success is true.
+	 * 
+	 * @return The positions of the needed entities, or null if the entities 
+	 *         have been filtered by the decoder.
+	 */
+	public BitSet getNeededByReceiver() {
+		return neededByReceiver;
+	}
+
+	/**
+	 * Gets the index information of the blob. This is only valid after
+	 * complete becomes true, and if success is true.
+	 * 
+	 * @return The position, contained types and ID range of the blob.
+	 */
+	public BlobFileIndex getBlobIndex() {
+		return blobIndex;
+	}
 }
@@ -0,0 +1,167 @@
+package net.morbz.osmonaut.binary.pbf;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.io.IOException;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+
+import net.morbz.osmonaut.EntityFilter;
+import net.morbz.osmonaut.osm.EntityType;
+
+/**
+ * Finds out which entity types a primitive block contains and the range of the
+ * contained entity IDs, without decoding the block. The raw protobuf fields
+ * are walked and everything but the group types and entity IDs is skipped, 
+ * including the string table, tags and coordinates.
+ */
+public class PbfBlockClassifier {
+	// Field numbers as defined in osmformat.proto
+	private static final int BLOCK_PRIMITIVEGROUP = 2;
+	private static final int GROUP_NODES = 1;
+	private static final int GROUP_DENSE = 2;
+	private static final int GROUP_WAYS = 3;
+	private static final int GROUP_RELATIONS = 4;
+	private static final int ENTITY_ID = 1;
+
+	private EntityFilter containedTypes = new EntityFilter(false, false, false);
+	private long minId = Long.MAX_VALUE;
+	private long maxId = Long.MIN_VALUE;
+
+	/**
+	 * Classifies the given primitive block.
+	 * 
+	 * @param in The stream on the uncompressed primitive block
+	 * @throws IOException If the block is malformed
+	 */
+	public void classify(CodedInputStream in) throws IOException {
+		int tag;
+		while((tag = in.readTag()) != 0) {
+			if(isMessage(tag, BLOCK_PRIMITIVEGROUP)) {
+				int oldLimit = in.pushLimit(in.readRawVarint32());
+				classifyGroup(in);
+				in.popLimit(oldLimit);
+			} else {
+				in.skipField(tag);
+			}
+		}
+	}
+
+	private void classifyGroup(CodedInputStream in) throws IOException {
+		int tag;
+		while((tag = in.readTag()) != 0) {
+			if(isMessage(tag, GROUP_NODES)) {
+				containedTypes.setEntityEnabled(EntityType.NODE, true);
+				readEntityId(in, true);
+			} else if(isMessage(tag, GROUP_DENSE)) {
+				containedTypes.setEntityEnabled(EntityType.NODE, true);
+				readDenseIds(in);
+			} else if(isMessage(tag, GROUP_WAYS)) {
+				containedTypes.setEntityEnabled(EntityType.WAY, true);
+				readEntityId(in, false);
+			} else if(isMessage(tag, GROUP_RELATIONS)) {
+				containedTypes.setEntityEnabled(EntityType.RELATION, true);
+				readEntityId(in, false);
+			} else {
+				in.skipField(tag);
+			}
+		}
+	}
+
+	/**
+	 * Reads the ID of a node, way or relation message and skips the rest.
+	 */
+	private void readEntityId(CodedInputStream in, boolean zigZag) throws IOException {
+		int oldLimit = in.pushLimit(in.readRawVarint32());
+		int tag;
+		while((tag = in.readTag()) != 0) {
+			if(tag == WireFormat.WIRETYPE_VARINT + (ENTITY_ID << 3)) {
+				indexId(zigZag ? in.readSInt64() : in.readInt64());
+				in.skipRawBytes(in.getBytesUntilLimit());
+			} else {
+				in.skipField(tag);
+			}
+		}
+		in.popLimit(oldLimit);
+	}
+
+	/**
+	 * Reads the delta encoded IDs of a dense nodes message and skips the rest.
+	 */
+	private void readDenseIds(CodedInputStream in) throws IOException {
+		int oldLimit = in.pushLimit(in.readRawVarint32());
+		long id = 0;
+		int tag;
+		while((tag = in.readTag()) != 0) {
+			if(isMessage(tag, ENTITY_ID)) {
+				// Packed
+				int idsLimit = in.pushLimit(in.readRawVarint32());
+				while(in.getBytesUntilLimit() > 0) {
+					id += in.readSInt64();
+					indexId(id);
+				}
+				in.popLimit(idsLimit);
+			} else if(tag == WireFormat.WIRETYPE_VARINT + (ENTITY_ID << 3)) {
+				// Not packed
+				id += in.readSInt64();
+				indexId(id);
+			} else {
+				in.skipField(tag);
+			}
+		}
+		in.popLimit(oldLimit);
+	}
+
+	private boolean isMessage(int tag, int fieldNumber) {
+		return tag == WireFormat.WIRETYPE_LENGTH_DELIMITED + (fieldNumber << 3);
+	}
+
+	private void indexId(long id) {
+		minId = Math.min(minId, id);
+		maxId = Math.max(maxId, id);
+	}
+
+	/**
+	 * @return The entity types that the block contains
+	 */
+	public EntityFilter getContainedTypes() {
+		return containedTypes;
+	}
+
+	/**
+	 * @return The lowest entity ID of the block
+	 */
+	public long getMinId() {
+		return minId;
+	}
+
+	/**
+	 * @return The highest entity ID of the block
+	 */
+	public long getMaxId() {
+		return maxId;
+	}
+}
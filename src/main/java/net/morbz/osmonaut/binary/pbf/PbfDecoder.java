@@ -4,38 +4,67 @@ package net.morbz.osmonaut.binary.pbf;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
-import net.morbz.osmonaut.EntityFilter;
+import net.morbz.osmonaut.TagFilter;
 import net.morbz.osmonaut.binary.OsmonautSink;
 import net.morbz.osmonaut.osm.Entity;
 import net.morbz.osmonaut.osm.EntityType;
 
 /**
  * Decodes all blocks from a PBF stream using worker threads, and passes the
- * results to the downstream sink.
+ * results to the downstream sink. The blobs are numbered in file order and at
+ * most queueDepth blobs are decoded but not yet passed on at a time. The 
+ * scanning thread waits for the future of the oldest blob, or with unordered 
+ * delivery takes the completed blobs from a bounded queue, so that a slow 
+ * blob doesn't hold back the others.
  * 
  * @author Brett Henderson
  * @author Merten Peetz
  */
 public class PbfDecoder {
-	private int maxPendingBlobs;
-	private Lock lock;
-	private Condition dataWaitCondition;
-	private Queue<PbfBlobResult> blobResults;
+	private int queueDepth;
+	// The blobs in file order that are in flight, or with unordered delivery
+	// that still have to be indexed
+	private ArrayDeque<PbfBlobResult> fileOrderResults;
+	private BlockingQueue<PbfBlobResult> completedResults;
+	private long submittedBlobs;
+	private int blobsInFlight;
 	private int workers;
+	// The number of worker threads that the next scan starts with
+	private int activeWorkers;
+	private int neededWorkers;
+	// The number of worker threads that currently decode the blobs
+	private int currentWorkers;
+	private LongAdder decodeNanos = new LongAdder();
+	private long sinkNanos;
+	// The delivered blobs after which the workers are adapted during a scan
+	private int adaptationWindow = 0;
+	private int windowBlobs;
+	private long windowDecodeNanos;
+	private long windowSinkNanos;
+	private double sinkUtilization;
+	private boolean parallelFiltering = false;
+	private boolean orderedDelivery = true;
 	private OsmonautSink sink;
-	private RandomAccessFile inputStream;
+	private TagFilter tagFilter;
+	private PbfFile inputFile;
 	private ExecutorService executorService;
+	private boolean ownsExecutorService = false;
+	private BlobDecompressorPool decompressors = new BlobDecompressorPool();
 	private RawBlobIndexer nodeIndexer, wayIndexer, relationIndexer;
+	private List<BlobFileIndex> blobIndexes = new ArrayList<BlobFileIndex>();
+	private BlobIndexFile indexFile;
 	private boolean firstScan = true;
 
 	/**
@@ -47,71 +76,95 @@ public class PbfDecoder {
 	 *            The number of worker threads for decoding PBF blocks.
 	 */
 	public PbfDecoder(final File file, int workers) {
+		this(file, workers, true);
+	}
+
+	/**
+	 * Creates a new instance.
+	 * 
+	 * @param file
+	 *            The file to read.
+	 * @param workers
+	 *            The number of worker threads for decoding PBF blocks.
+	 * @param memoryMapping
+	 *            Whether the file should be memory mapped. Otherwise the worker
+	 *            threads read their blobs with positional reads.
+	 */
+	public PbfDecoder(final File file, int workers, boolean memoryMapping) {
 		this.workers = workers;
-		this.maxPendingBlobs = workers + 1;
+		this.queueDepth = 2 * workers;
+		this.activeWorkers = workers;
+		this.neededWorkers = workers;
+		this.currentWorkers = workers;
 
 		// Open PBF file
 		try {
-			inputStream = new RandomAccessFile(file, "r");
+			if(memoryMapping) {
+				inputFile = new MappedPbfFile(file);
+			} else {
+				inputFile = new ChannelPbfFile(file);
+			}
 		} catch (IOException e) {
 			throw new RuntimeException("Unable to read PBF file " + file + ".", e);
 		}
 
 		// Create indexes
-		nodeIndexer = new RawBlobIndexer(inputStream);
-		wayIndexer = new RawBlobIndexer(inputStream);
-		relationIndexer = new RawBlobIndexer(inputStream);
-
-		// Create the thread synchronisation primitives.
-		lock = new ReentrantLock();
-		dataWaitCondition = lock.newCondition();
-
-		// Create the queue of blobs being decoded.
-		blobResults = new LinkedList<PbfBlobResult>();
+		indexFile = new BlobIndexFile(file);
+		nodeIndexer = new RawBlobIndexer(inputFile);
+		wayIndexer = new RawBlobIndexer(inputFile);
+		relationIndexer = new RawBlobIndexer(inputFile);
 	}
 
 	/**
-	 * Any thread can call this method when they wish to wait until an update
-	 * has been performed by another thread.
+	 * Passes the entities of the next decoded blob to the sink. This is the 
+	 * oldest blob in flight, or with unordered delivery the first blob that 
+	 * has been completed. Blocks until that blob is decoded.
 	 */
-	private void waitForUpdate() {
-		try {
-			dataWaitCondition.await();
-		} catch (InterruptedException e) {
-			throw new RuntimeException("Thread was interrupted.", e);
+	private void sendNextResultToSink() {
+		PbfBlobResult blobResult;
+		if (orderedDelivery) {
+			blobResult = fileOrderResults.peek().awaitCompletion();
+		} else {
+			try {
+				blobResult = completedResults.take();
+			} catch (InterruptedException e) {
+				throw new RuntimeException("Thread was interrupted.", e);
+			}
 		}
-	}
 
-	/**
-	 * Any thread can call this method when they wish to signal another thread
-	 * that an update has occurred.
-	 */
-	private void signalUpdate() {
-		dataWaitCondition.signal();
-	}
-
-	private void sendResultsToSink(int targetQueueSize) {
-		while (blobResults.size() > targetQueueSize) {
-			// Get the next result from the queue and wait for it to complete.
-			PbfBlobResult blobResult = blobResults.remove();
-			while (!blobResult.isComplete()) {
-				// The thread hasn't finished processing yet so wait for an
-				// update from another thread before checking again.
-				waitForUpdate();
-			}
+		if (!blobResult.isSuccess()) {
+			throw new RuntimeException("A PBF decoding worker thread failed, aborting.", 
+					blobResult.getFailure());
+		}
 
-			if (!blobResult.isSuccess()) {
-				throw new RuntimeException("A PBF decoding worker thread failed, aborting.");
+		// Send the processed entities to the sink
+		long sinkStart = System.nanoTime();
+		List<Entity> entities = blobResult.getEntities();
+		BitSet neededByReceiver = blobResult.getNeededByReceiver();
+		for (int i = 0; i < entities.size(); i++) {
+			Entity entity = entities.get(i);
+			if (neededByReceiver != null) {
+				// Already filtered by the worker thread
+				sink.foundEntity(entity, neededByReceiver.get(i));
+			} else {
+				boolean neededForReceiver = sink.isNeededByReceiver(entity);
+				if (neededForReceiver || sink.isNeededAsMember(entity)) {
+					sink.foundEntity(entity, neededForReceiver);
+				}
 			}
+		}
+		blobResult.setDelivered();
+		blobsInFlight--;
+		sinkNanos += System.nanoTime() - sinkStart;
+		if (adaptationWindow > 0 && ownsExecutorService && ++windowBlobs >= adaptationWindow) {
+			adaptWorkers();
+		}
 
-			// Send the processed entities to the sink. We can release the lock
-			// for the duration of processing to allow worker threads to post
-			// their results.
-			lock.unlock();
-			for (Entity entity : blobResult.getEntities()) {
-				sink.foundEntity(entity);
-			}
-			lock.lock();
+		// Index the delivered blobs in file order. With unordered delivery the
+		// delivered blobs may wait here for an older one, but they don't count
+		// as in flight anymore.
+		while (!fileOrderResults.isEmpty() && fileOrderResults.peek().isDelivered()) {
+			indexBlob(fileOrderResults.remove().getBlobIndex());
 		}
 	}
 
@@ -124,7 +177,7 @@ public class PbfDecoder {
 		// right order, no matter how they are ordered in the file.
 		RawBlobProvider provider = null;
 		if(firstScan) {
-			provider = new RawBlobReader(inputStream);
+			provider = new RawBlobReader(inputFile);
 		} else {
 			switch(type) {
 			case NODE:
@@ -141,77 +194,256 @@ public class PbfDecoder {
 
 		// Process until the PBF stream is exhausted.
 		while (provider.hasNext()) {
-			// Obtain the next raw blob from the PBF stream.
+			// Obtain the position of the next raw blob. The blob data is read
+			// by the worker thread, so that reading scales with the workers.
 			final PbfRawBlob rawBlob = provider.next();
 
+			// If the queue is full we must begin sending results to the sink
+			// before reading further. This blocks until blob decoding is 
+			// complete.
+			while (blobsInFlight >= queueDepth) {
+				sendNextResultToSink();
+			}
+
 			// Create the result object to capture the results of the decoded
-			// blob and add it to the blob results queue.
-			final PbfBlobResult blobResult = new PbfBlobResult();
-			blobResults.add(blobResult);
+			// blob and add it to the blobs in flight.
+			final PbfBlobResult blobResult = new PbfBlobResult(submittedBlobs);
+			if (orderedDelivery || firstScan) {
+				fileOrderResults.add(blobResult);
+			}
+			submittedBlobs++;
+			blobsInFlight++;
 
 			// Create the listener object that will update the blob results
 			// based on an event fired by the blob decoder.
 			PbfBlobDecoderListener decoderListener = new PbfBlobDecoderListener() {
 				@Override
-				public void error() {
-					lock.lock();
-					try {
-						blobResult.storeFailureResult();
-						signalUpdate();
-					} finally {
-						lock.unlock();
+				public void error(Throwable cause) {
+					blobResult.storeFailureResult(cause);
+					if (!orderedDelivery) {
+						completedResults.add(blobResult);
 					}
 				}
 
 				@Override
-				public void complete(List<Entity> decodedEntities, EntityFilter containedTypes) {
-					lock.lock();
-					try {
-						blobResult.storeSuccessResult(decodedEntities);
-						indexBlob(rawBlob, containedTypes);
-						signalUpdate();
-					} finally {
-						lock.unlock();
+				public void complete(List<Entity> decodedEntities, BitSet neededByReceiver, 
+						BlobFileIndex blobIndex) {
+					blobResult.storeSuccessResult(decodedEntities, neededByReceiver, blobIndex);
+					if (!orderedDelivery) {
+						completedResults.add(blobResult);
 					}
 				}
 			};
 
 			// Create the blob decoder itself and execute it on a worker thread.
-			PbfBlobDecoder blobDecoder = new PbfBlobDecoder(rawBlob.getType(), rawBlob.getData(), decoderListener, type);
-			executorService.execute(blobDecoder);
-
-			// If the number of pending blobs has reached capacity we must begin
-			// sending results to the sink. This method will block until blob
-			// decoding is complete.
-			sendResultsToSink(maxPendingBlobs - 1);
+			final PbfBlobDecoder blobDecoder = new PbfBlobDecoder(rawBlob, decompressors, decoderListener, type, 
+					tagFilter, parallelFiltering ? sink : null, firstScan);
+			executorService.execute(new Runnable() {
+				@Override
+				public void run() {
+					long start = System.nanoTime();
+					blobDecoder.run();
+					decodeNanos.add(System.nanoTime() - start);
+				}
+			});
 		}
 
 		// There are no more entities available in the PBF stream, so send all remaining data to the sink.
-		sendResultsToSink(0);
+		while (blobsInFlight > 0) {
+			sendNextResultToSink();
+		}
 
 		firstScan = false;
 		provider.resetIterator();
 	}
 
-	private void indexBlob(PbfRawBlob rawBlob, EntityFilter containedTypes) {
+	private void indexBlob(BlobFileIndex blobIndex) {
 		if(!firstScan) {
 			return;
 		}
 
-		long fileOffset = rawBlob.getFileOffset();
-		int blobSize = rawBlob.getData().length;
-
 		// Each blob may contain entities of different types, so we can't just
 		// use an enum array.
-		if(containedTypes.getEntityEnabled(EntityType.NODE)) {
-			nodeIndexer.indexBlob(fileOffset, blobSize);
+		boolean indexed = false;
+		if(blobIndex.containsType(EntityType.NODE)) {
+			nodeIndexer.indexBlob(blobIndex);
+			indexed = true;
+		}
+		if(blobIndex.containsType(EntityType.WAY)) {
+			wayIndexer.indexBlob(blobIndex);
+			indexed = true;
+		}
+		if(blobIndex.containsType(EntityType.RELATION)) {
+			relationIndexer.indexBlob(blobIndex);
+			indexed = true;
+		}
+		if(indexed) {
+			blobIndexes.add(blobIndex);
+		}
+	}
+
+	/**
+	 * @param parallelFiltering Whether the worker threads decide which 
+	 * entities are needed. The sinks passed to scan() must then be 
+	 * thread-safe.
+	 */
+	public void setParallelFiltering(boolean parallelFiltering) {
+		this.parallelFiltering = parallelFiltering;
+	}
+
+	/**
+	 * @param orderedDelivery Whether the decoded entities are passed to the 
+	 * sink in file order. Otherwise the entities of a blob are passed on as 
+	 * soon as it has been decoded, so that a slow blob doesn't hold back the
+	 * others. Defaults to true.
+	 */
+	public void setOrderedDelivery(boolean orderedDelivery) {
+		this.orderedDelivery = orderedDelivery;
+	}
+
+	/**
+	 * @param activeWorkers The number of the worker threads that decode the 
+	 * blobs of the next scan, e.g. the result of getNeededWorkers() for an 
+	 * earlier scan with the same entity type and sink. With an adaptation 
+	 * window this is only the number the scan starts with. It is limited to 
+	 * the number of workers. Has no effect with an executor from 
+	 * setExecutorService(). Defaults to the number of workers.
+	 */
+	public void setActiveWorkers(int activeWorkers) {
+		this.activeWorkers = Math.max(1, Math.min(workers, activeWorkers));
+	}
+
+	/**
+	 * @param adaptationWindow The number of blobs after which the worker 
+	 * threads are adapted during a scan. After each window of delivered blobs
+	 * the pool is resized to the number of workers that the window needed, 
+	 * see getNeededWorkers(). A scan starts with the active workers. 0 keeps 
+	 * the active workers for the whole scan. Has no effect with an executor 
+	 * from setExecutorService(). Defaults to 0.
+	 */
+	public void setAdaptationWindow(int adaptationWindow) {
+		if(adaptationWindow < 0) {
+			throw new IllegalArgumentException("The adaptation window must not be negative.");
+		}
+		this.adaptationWindow = adaptationWindow;
+	}
+
+	/**
+	 * @return The number of worker threads that currently decode the blobs, 
+	 * which may change during a scan with an adaptation window
+	 */
+	public int getCurrentWorkers() {
+		return currentWorkers;
+	}
+
+	/**
+	 * @return The number of worker threads that would have been enough for 
+	 * the last scan to keep the sink busy, between 1 and the number of 
+	 * workers. The measurement only applies to scans of the same entity type
+	 * with the same sink, which take the same time per blob.
+	 */
+	public int getNeededWorkers() {
+		return neededWorkers;
+	}
+
+	/**
+	 * @return The share of the last scan's time in which the sink was busy, 
+	 * between 0 and 1. A busy sink means that decoding isn't the bottleneck.
+	 */
+	public double getSinkUtilization() {
+		return sinkUtilization;
+	}
+
+	/**
+	 * @return The estimated native memory in bytes held by the inflaters of 
+	 * the worker threads
+	 */
+	public long getNativeMemoryHeld() {
+		return decompressors.getNativeMemoryHeld();
+	}
+
+	/**
+	 * @return The heap memory in bytes held by the decompression buffers of 
+	 * the worker threads
+	 */
+	public long getBufferMemoryHeld() {
+		return decompressors.getBufferMemoryHeld();
+	}
+
+	/**
+	 * @param executorService The executor that decodes the blobs, e.g. to 
+	 * share one thread pool between multiple decoders. It is not shut down by
+	 * the decoder. Must be set before the first scan. By default the decoder 
+	 * creates a pool of the given number of worker threads, which is kept for
+	 * all scans until the decoder is closed.
+	 */
+	public void setExecutorService(ExecutorService executorService) {
+		if(this.executorService != null) {
+			throw new IllegalStateException("The executor has already been created.");
 		}
-		if(containedTypes.getEntityEnabled(EntityType.WAY)) {
-			wayIndexer.indexBlob(fileOffset, blobSize);
+		this.executorService = executorService;
+	}
+
+	/**
+	 * @param queueDepth The maximum number of blobs that are read but not yet
+	 * passed to the sink. A deeper queue keeps the workers busy when some 
+	 * blobs take longer than others, at the cost of memory for the decoded
+	 * blobs. Defaults to twice the number of workers.
+	 */
+	public void setQueueDepth(int queueDepth) {
+		if(queueDepth < 1) {
+			throw new IllegalArgumentException("The queue depth must be at least 1.");
 		}
-		if(containedTypes.getEntityEnabled(EntityType.RELATION)) {
-			relationIndexer.indexBlob(fileOffset, blobSize);
+		this.queueDepth = queueDepth;
+	}
+
+	/**
+	 * Loads the blob index from the index file next to the PBF file. If 
+	 * successful, no scan has to read the whole file.
+	 * 
+	 * @return True if the index has been loaded, false if there is no index
+	 * file or it doesn't match the PBF file
+	 * @throws IOException If the index file can't be read
+	 */
+	public boolean loadIndex() throws IOException {
+		List<BlobFileIndex> blobs = indexFile.read();
+		if(blobs == null) {
+			return false;
 		}
+
+		for(BlobFileIndex blobIndex : blobs) {
+			indexBlob(blobIndex);
+		}
+		firstScan = false;
+		return true;
+	}
+
+	/**
+	 * Writes the blob index to the index file next to the PBF file. Only 
+	 * possible after the first scan.
+	 * 
+	 * @throws IOException If the index file can't be written
+	 */
+	public void saveIndex() throws IOException {
+		if(firstScan) {
+			throw new IllegalStateException("The file has not been indexed yet.");
+		}
+		indexFile.write(blobIndexes);
+	}
+
+	/**
+	 * @return True if the blob index is complete, i.e. the file has been
+	 * scanned once or the index has been loaded
+	 */
+	public boolean isIndexed() {
+		return !firstScan;
+	}
+
+	/**
+	 * @return The file in which the blob index is stored
+	 */
+	public File getIndexFile() {
+		return indexFile.getFile();
 	}
 
 	/**
@@ -222,35 +454,128 @@ public class PbfDecoder {
 	 * @param sink The sink to send all decoded entities to
 	 */
 	public void scan(EntityType type, OsmonautSink sink) {
+		scan(type, null, sink);
+	}
+
+	/**
+	 * Scans the PBF file for entities of the given type that match the tag 
+	 * filter and sends them to the sink. The filter is evaluated by the worker
+	 * threads before the entities are built.
+	 * @param type The entity type to scan for. Only entities of this type will
+	 * be returned.
+	 * @param tagFilter Only entities that match this filter will be returned. 
+	 * May be null to return all entities.
+	 * @param sink The sink to send all decoded entities to
+	 */
+	public void scan(EntityType type, TagFilter tagFilter, OsmonautSink sink) {
 		this.sink = sink;
+		this.tagFilter = tagFilter;
 
-		executorService = Executors.newFixedThreadPool(workers);
+		fileOrderResults = new ArrayDeque<PbfBlobResult>(queueDepth);
+		completedResults = new ArrayBlockingQueue<PbfBlobResult>(queueDepth);
+		submittedBlobs = 0;
+		blobsInFlight = 0;
 
+		// The worker threads are kept for all scans of the file
+		if(executorService == null) {
+			executorService = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS, 
+					new LinkedBlockingQueue<Runnable>(), decompressors.getThreadFactory());
+			ownsExecutorService = true;
+		}
+		if(ownsExecutorService) {
+			resizePool(activeWorkers);
+		}
+		decodeNanos.reset();
+		sinkNanos = 0;
+		windowBlobs = 0;
+		windowDecodeNanos = 0;
+		windowSinkNanos = 0;
+		long start = System.nanoTime();
+
+		boolean success = false;
 		try {
 			// Process all blobs of data in the stream using threads from the
-			// executor service. We allow the decoder to issue an extra blob
-			// than there are workers to ensure there is another blob
-			// immediately ready for processing when a worker thread completes.
-			// The main thread is responsible for splitting blobs from the
-			// request stream, and sending decoded entities to the sink.
-			lock.lock();
-			try {
-				processBlobs(type);
-			} finally {
-				lock.unlock();
-			}
+			// executor service. We allow the decoder to issue more blobs than
+			// there are workers to ensure there is another blob immediately 
+			// ready for processing when a worker thread completes. The main 
+			// thread is responsible for locating the blobs in the file, and 
+			// sending decoded entities to the sink.
+			processBlobs(type);
+			success = true;
+			measureWorkers(System.nanoTime() - start);
 		} finally {
-			executorService.shutdownNow();
+			// Stop the workers that are still decoding blobs of a failed scan
+			if(!success && ownsExecutorService) {
+				shutdownExecutorService();
+			}
 		}
 	}
 
 	/**
-	 * Closes the PBF file.
+	 * Measures how many workers the scan needed. The sink takes one blob at a
+	 * time, so only as many workers are needed as it takes to decode the 
+	 * blobs as fast as the sink processes them. More workers would only 
+	 * compete with the sink for the processors.
+	 */
+	private void measureWorkers(long scanNanos) {
+		sinkUtilization = scanNanos > 0 ? (double)sinkNanos / scanNanos : 0;
+		neededWorkers = calculateNeededWorkers(decodeNanos.sum(), sinkNanos);
+	}
+
+	/**
+	 * Resizes the pool to the workers that the last window of blobs needed, 
+	 * so that the scan adapts to the sink while it runs.
+	 */
+	private void adaptWorkers() {
+		long currentDecodeNanos = decodeNanos.sum();
+		resizePool(calculateNeededWorkers(currentDecodeNanos - windowDecodeNanos, sinkNanos - windowSinkNanos));
+		windowBlobs = 0;
+		windowDecodeNanos = currentDecodeNanos;
+		windowSinkNanos = sinkNanos;
+	}
+
+	private int calculateNeededWorkers(long decodeNanos, long sinkNanos) {
+		// Decoding time per sink time, plus one worker as headroom
+		long needed = workers;
+		if(sinkNanos > 0) {
+			needed = (decodeNanos + sinkNanos - 1) / sinkNanos + 1;
+		}
+		return (int)Math.max(1, Math.min(workers, needed));
+	}
+
+	private void resizePool(int poolSize) {
+		// The core size must never exceed the maximum size
+		ThreadPoolExecutor pool = (ThreadPoolExecutor)executorService;
+		if(poolSize < pool.getCorePoolSize()) {
+			pool.setCorePoolSize(poolSize);
+			pool.setMaximumPoolSize(poolSize);
+		} else {
+			pool.setMaximumPoolSize(poolSize);
+			pool.setCorePoolSize(poolSize);
+		}
+		currentWorkers = poolSize;
+	}
+
+	private void shutdownExecutorService() {
+		executorService.shutdownNow();
+		executorService = null;
+		ownsExecutorService = false;
+	}
+
+	/**
+	 * Closes the PBF file, stops the worker threads and frees the 
+	 * decompression buffers. An executor that has been set with 
+	 * setExecutorService() keeps running.
 	 */
 	public void close() {
-		if(inputStream != null) {
+		if(ownsExecutorService) {
+			shutdownExecutorService();
+		}
+		decompressors.releaseAll();
+
+		if(inputFile != null) {
 			try {
-				inputStream.close();
+				inputFile.close();
 			} catch (IOException e) {
 			}
 		}
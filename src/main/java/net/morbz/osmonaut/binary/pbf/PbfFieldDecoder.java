@@ -2,6 +2,12 @@
 
 package net.morbz.osmonaut.binary.pbf;
 
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.protobuf.ByteString;
+
 import net.morbz.osmonaut.binary.pbf.proto.Osmformat.PrimitiveBlock;
 import net.morbz.osmonaut.binary.pbf.proto.Osmformat.PrimitiveBlock.StringTable;
 
@@ -14,7 +20,9 @@ import net.morbz.osmonaut.binary.pbf.proto.Osmformat.PrimitiveBlock.StringTable;
 public class PbfFieldDecoder {
 	private static final double COORDINATE_SCALING_FACTOR = 0.000000001;
 
+	private StringTable stringTable;
 	private String[] strings;
+	private Map<String, int[]> stringIndexes = new ConcurrentHashMap<String, int[]>();
 	private int coordGranularity;
 	private long coordLatitudeOffset;
 	private long coordLongitudeOffset;
@@ -30,11 +38,11 @@ public class PbfFieldDecoder {
 		this.coordLatitudeOffset = primitiveBlock.getLatOffset();
 		this.coordLongitudeOffset = primitiveBlock.getLonOffset();
 
-		StringTable stringTable = primitiveBlock.getStringtable();
+		// Strings are decoded on first use, most of them are never needed. The
+		// parsed block owns a copy of the string table, so it stays valid
+		// after the decompressor has been reused.
+		stringTable = primitiveBlock.getStringtable();
 		strings = new String[stringTable.getSCount()];
-		for (int i = 0; i < strings.length; i++) {
-			strings[i] = stringTable.getS(i).toStringUtf8();
-		}
 	}
 
 	/**
@@ -67,6 +75,44 @@ public class PbfFieldDecoder {
 	 * @return The string as a String.
 	 */
 	public String decodeString(int rawString) {
-		return strings[rawString];
+		// Concurrent decoding of the same string is harmless
+		String string = strings[rawString];
+		if (string == null) {
+			string = stringTable.getS(rawString).toStringUtf8();
+			strings[rawString] = string;
+		}
+		return string;
+	}
+
+	/**
+	 * Looks up the indexes of a string in the string table. The format 
+	 * doesn't require the table to be deduplicated, so a string may be stored
+	 * more than once. The result is cached, so each string is only searched 
+	 * once per block.
+	 * 
+	 * @param string
+	 *            The string to look up.
+	 * @return The PBF encodings of the string, empty if the block doesn't
+	 *         contain it.
+	 */
+	public int[] encodeString(String string) {
+		int[] indexes = stringIndexes.get(string);
+		if (indexes == null) {
+			// Compare the encoded bytes to avoid decoding the whole table
+			ByteString bytes = ByteString.copyFromUtf8(string);
+			indexes = new int[1];
+			int count = 0;
+			for (int i = 0; i < strings.length; i++) {
+				if (stringTable.getS(i).equals(bytes)) {
+					if (count == indexes.length) {
+						indexes = Arrays.copyOf(indexes, count * 2);
+					}
+					indexes[count++] = i;
+				}
+			}
+			indexes = Arrays.copyOf(indexes, count);
+			stringIndexes.put(string, indexes);
+		}
+		return indexes;
 	}
 }
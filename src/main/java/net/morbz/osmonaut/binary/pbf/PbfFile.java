@@ -0,0 +1,70 @@
+package net.morbz.osmonaut.binary.pbf;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Provides random access to the content of a PBF file. Reads are positional,
+ * so the file can be read by several threads at the same time.
+ */
+public abstract class PbfFile {
+	/**
+	 * Reads the given region of the file. This method is thread-safe.
+	 * 
+	 * @param offset The position from the beginning of the file in bytes
+	 * @param length The number of bytes
+	 * @return The buffer that contains exactly the region
+	 * @throws IOException If the region exceeds the end of the file
+	 */
+	public abstract ByteBuffer read(long offset, int length) throws IOException;
+
+	/**
+	 * @return The size of the file in bytes
+	 */
+	public abstract long size();
+
+	/**
+	 * Closes the file.
+	 */
+	public abstract void close() throws IOException;
+
+	/**
+	 * @param offset The position from the beginning of the file in bytes
+	 * @return The big-endian integer at the given position
+	 * @throws IOException If the end of the file is reached
+	 */
+	public int readInt(long offset) throws IOException {
+		return read(offset, 4).getInt();
+	}
+
+	protected void checkRegion(long offset, int length) throws EOFException {
+		if(offset < 0 || length < 0 || offset + length > size()) {
+			throw new EOFException();
+		}
+	}
+}
@@ -2,17 +2,22 @@
 
 package net.morbz.osmonaut.binary.pbf;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 /**
- * Represents a single piece of raw blob data extracted from the PBF stream. It
- * has not yet been decoded into a PBF blob object.
+ * Represents a single piece of raw blob data in the PBF file. It has not yet
+ * been decoded into a PBF blob object. The data is only read when requested,
+ * so that the blob can be read by the thread that decodes it.
  * 
  * @author Brett Henderson
  * @author Merten Peetz
  */
 public class PbfRawBlob {
 	private String type;
-	private byte[] data;
+	private PbfFile file;
 	private long fileOffset;
+	private int size;
 
 	/**
 	 * Creates a new instance.
@@ -20,16 +25,19 @@ public class PbfRawBlob {
 	 * @param type
 	 *            The type of data represented by this blob. This corresponds to
 	 *            the type field in the blob header.
-	 * @param data
-	 *            The raw contents of the blob in binary undecoded form.
+	 * @param file
+	 *            The PBF file that contains the blob.
 	 * @param fileOffset        
 	 *            The position from the beginning of the PBF file in bytes 
 	 *            where the blob starts
+	 * @param size
+	 *            The size of the blob in bytes.
 	 */
-	public PbfRawBlob(String type, byte[] data, long fileOffset) {
+	public PbfRawBlob(String type, PbfFile file, long fileOffset, int size) {
 		this.type = type;
-		this.data = data;
+		this.file = file;
 		this.fileOffset = fileOffset;
+		this.size = size;
 	}
 
 	/**
@@ -43,12 +51,21 @@ public class PbfRawBlob {
 	}
 
 	/**
-	 * Gets the raw contents of the blob in binary undecoded form.
+	 * Reads the raw contents of the blob in binary undecoded form. This method
+	 * is thread-safe.
 	 * 
 	 * @return The raw blob data.
+	 * @throws IOException If the blob can't be read.
+	 */
+	public ByteBuffer getData() throws IOException {
+		return file.read(fileOffset, size);
+	}
+
+	/**
+	 * @return The size of the raw blob in bytes
 	 */
-	public byte[] getData() {
-		return data;
+	public int getSize() {
+		return size;
 	}
 
 	/**
@@ -0,0 +1,134 @@
+package net.morbz.osmonaut.binary.pbf;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import net.morbz.osmonaut.TagFilter;
+
+/**
+ * A tag filter that has been compiled against the string table of a PBF 
+ * block. Keys and values are resolved to string table indexes once, so that 
+ * entities can be matched on their raw key and value indexes.
+ */
+class PbfTagMatcher {
+	private int[] keys;
+	// The accepted value indexes for each key, null if all values are accepted
+	private int[][] values;
+
+	/**
+	 * @param filter
+	 *            The tag filter, must not be empty
+	 * @param fieldDecoder
+	 *            The decoder of the block that contains the string table
+	 */
+	public PbfTagMatcher(TagFilter filter, PbfFieldDecoder fieldDecoder) {
+		List<int[]> keyValues = new ArrayList<int[]>();
+		List<Integer> keyIndexes = new ArrayList<Integer>();
+		for(String key : filter.getKeys()) {
+			// Conditions with keys or values that aren't in the block can never
+			// match. Strings may be stored more than once in the block.
+			int[] keyStringIndexes = fieldDecoder.encodeString(key);
+			if(keyStringIndexes.length == 0) {
+				continue;
+			}
+			int[] valueIndexes = null;
+			Set<String> acceptedValues = filter.getValues(key);
+			if(acceptedValues != null) {
+				valueIndexes = new int[0];
+				for(String value : acceptedValues) {
+					int[] valueStringIndexes = fieldDecoder.encodeString(value);
+					int count = valueIndexes.length;
+					valueIndexes = Arrays.copyOf(valueIndexes, count + valueStringIndexes.length);
+					System.arraycopy(valueStringIndexes, 0, valueIndexes, count, valueStringIndexes.length);
+				}
+				if(valueIndexes.length == 0) {
+					continue;
+				}
+			}
+			for(int keyIndex : keyStringIndexes) {
+				keyIndexes.add(keyIndex);
+				keyValues.add(valueIndexes);
+			}
+		}
+
+		keys = new int[keyIndexes.size()];
+		values = new int[keys.length][];
+		for(int i = 0; i < keys.length; i++) {
+			keys[i] = keyIndexes.get(i);
+			values[i] = keyValues.get(i);
+		}
+	}
+
+	/**
+	 * @return True if no entity of the block can match
+	 */
+	public boolean matchesNothing() {
+		return keys.length == 0;
+	}
+
+	/**
+	 * @param keyIndex
+	 *            The string table index of the key of a tag
+	 * @param valueIndex
+	 *            The string table index of the value of a tag
+	 * @return True if the tag matches
+	 */
+	public boolean matches(int keyIndex, int valueIndex) {
+		for(int i = 0; i < keys.length; i++) {
+			if(keys[i] != keyIndex) {
+				continue;
+			}
+			int[] acceptedValues = values[i];
+			if(acceptedValues == null) {
+				return true;
+			}
+			for(int acceptedValue : acceptedValues) {
+				if(acceptedValue == valueIndex) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param keysValues
+	 *            The alternating key and value indexes of an entity
+	 * @return True if at least one tag matches
+	 */
+	public boolean matches(int[] keysValues) {
+		for(int i = 0; i < keysValues.length; i += 2) {
+			if(matches(keysValues[i], keysValues[i + 1])) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,219 @@
+package net.morbz.osmonaut.binary.pbf;
+
+/*
+* The MIT License (MIT)
+* 
+* Copyright (c) 2016 Merten Peetz
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy
+* of this software and associated documentation files (the "Software"), to deal
+* in the Software without restriction, including without limitation the rights
+* to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+* copies of the Software, and to permit persons to whom the Software is
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all
+* copies or substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+* IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+* FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+* AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+* LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+* SOFTWARE.
+*/
+
+
+import java.io.IOException;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import net.morbz.osmonaut.osm.Tags;
+
+/**
+ * Tags that are backed by the string table indexes of a PBF block. Strings
+ * are only decoded when they are accessed, and the keys that are looked up 
+ * are resolved to indexes once per block. Changing the tags copies them into
+ * regular tags.
+ * 
+ * The tags keep the string table of the block alive, so entities that are 
+ * kept should be given a copy of them.
+ */
+public class PbfTags extends Tags {
+	private static final long serialVersionUID = 1L;
+
+	private PbfFieldDecoder fieldDecoder;
+	// Alternating key and value indexes, null once the tags have been copied
+	private int[] keysValues;
+
+	/**
+	 * @param fieldDecoder
+	 *            The decoder of the block that contains the string table
+	 * @param keysValues
+	 *            The alternating key and value indexes of the tags
+	 */
+	public PbfTags(PbfFieldDecoder fieldDecoder, int[] keysValues) {
+		this.fieldDecoder = fieldDecoder;
+		this.keysValues = keysValues;
+	}
+
+	/**
+	 * @param key
+	 *            The key of the tag
+	 * @return The position of the value index or -1 if the tag doesn't exist
+	 */
+	private int positionForKey(String key) {
+		// The key may be stored more than once in the string table
+		int[] keyIndexes = fieldDecoder.encodeString(key);
+		for(int i = 0; i < keysValues.length; i += 2) {
+			for(int keyIndex : keyIndexes) {
+				if(keysValues[i] == keyIndex) {
+					return i + 1;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean hasKey(String key) {
+		if(keysValues == null) {
+			return super.hasKey(key);
+		}
+		return positionForKey(key) != -1;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean hasOneOfKeys(String[] keys) {
+		if(keysValues == null) {
+			return super.hasOneOfKeys(keys);
+		}
+		for(String key : keys) {
+			if(positionForKey(key) != -1) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean hasKeyValue(String key, String value) {
+		if(keysValues == null) {
+			return super.hasKeyValue(key, value);
+		}
+		int position = positionForKey(key);
+		if(position == -1) {
+			return false;
+		}
+		return fieldDecoder.decodeString(keysValues[position]).equals(value);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String get(String key) {
+		if(keysValues == null) {
+			return super.get(key);
+		}
+		int position = positionForKey(key);
+		if(position == -1) {
+			return null;
+		}
+		return fieldDecoder.decodeString(keysValues[position]);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void set(String key, String value) {
+		copyToRegularTags();
+		super.set(key, value);
+	}
+
+	/**
+	 * {@inheritDoc} Every string is decoded once, without looking up the 
+	 * keys.
+	 */
+	@Override
+	protected void copyTo(Tags tags) {
+		if(keysValues == null) {
+			super.copyTo(tags);
+			return;
+		}
+		for(int i = 0; i < keysValues.length; i += 2) {
+			tags.set(fieldDecoder.decodeString(keysValues[i]), fieldDecoder.decodeString(keysValues[i + 1]));
+		}
+	}
+
+	private void copyToRegularTags() {
+		if(keysValues == null) {
+			return;
+		}
+
+		int[] copiedKeysValues = keysValues;
+		keysValues = null;
+		for(int i = 0; i < copiedKeysValues.length; i += 2) {
+			super.set(fieldDecoder.decodeString(copiedKeysValues[i]), 
+					fieldDecoder.decodeString(copiedKeysValues[i + 1]));
+		}
+		fieldDecoder = null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int size() {
+		if(keysValues == null) {
+			return super.size();
+		}
+		return keysValues.length / 2;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Iterator<String> iterator() {
+		if(keysValues == null) {
+			return super.iterator();
+		}
+		List<String> keys = new ArrayList<String>(keysValues.length / 2);
+		for(int i = 0; i < keysValues.length; i += 2) {
+			keys.add(fieldDecoder.decodeString(keysValues[i]));
+		}
+		return keys.iterator();
+	}
+
+	/**
+	 * {@inheritDoc} The tags are copied into regular tags first.
+	 */
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		copyToRegularTags();
+		super.writeExternal(out);
+	}
+
+	/**
+	 * Serializes regular tags instead, which don't need the string table.
+	 * 
+	 * @return A copy of the tags
+	 */
+	private Object writeReplace() {
+		return new Tags(this);
+	}
+}
@@ -24,8 +24,6 @@ package net.morbz.osmonaut.binary.pbf;
 * SOFTWARE.
 */
 
-import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -41,7 +39,7 @@ public class RawBlobIndexer extends RawBlobProvider {
 	/**
 	 * @param file The PBF file input stream
 	 */
-	public RawBlobIndexer(RandomAccessFile file) {
+	public RawBlobIndexer(PbfFile file) {
 		super(file);
 	}
 
@@ -61,27 +59,16 @@ public class RawBlobIndexer extends RawBlobProvider {
 	 */
 	@Override
 	public PbfRawBlob next() {
-		try {
-			BlobFileIndex blobIndex = iterator.next();
-
-			// Read blob
-			file.seek(blobIndex.getFileOffset());
-			byte[] blobData = readRawBlob(blobIndex.getBlobSize());
-			return new PbfRawBlob("OSMData", blobData, blobIndex.getFileOffset());
-		} catch (IOException e) {
-			throw new RuntimeException("Unable to get next blob from PBF stream.", e);
-		}
+		BlobFileIndex blobIndex = iterator.next();
+		return new PbfRawBlob("OSMData", file, blobIndex.getFileOffset(), blobIndex.getBlobSize());
 	}
 
 	/**
 	 * Adds a blob the the index.
 	 * 
-	 * @param fileOffset The position from the beginning of the PBF file in 
-	 * bytes where the blob starts
-	 * @param blobSize The size of the blob in bytes
+	 * @param blobIndex The position and content of the blob
 	 */
-	public void indexBlob(long fileOffset, int blobSize) {
-		BlobFileIndex blobIndex = new BlobFileIndex(fileOffset, blobSize);
+	public void indexBlob(BlobFileIndex blobIndex) {
 		blobIndexes.add(blobIndex);
 	}
 
@@ -93,21 +80,4 @@ public class RawBlobIndexer extends RawBlobProvider {
 		iterator = null;
 	}
 
-	private class BlobFileIndex {
-		private long fileOffset;
-		private int blobSize;
-
-		public BlobFileIndex(long fileOffset, int blobSize) {
-			this.fileOffset = fileOffset;
-			this.blobSize = blobSize;
-		}
-
-		public long getFileOffset() {
-			return fileOffset;
-		}
-
-		public int getBlobSize() {
-			return blobSize;
-		}
-	}
 }
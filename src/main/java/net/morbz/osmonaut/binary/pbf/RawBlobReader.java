@@ -4,14 +4,16 @@ package net.morbz.osmonaut.binary.pbf;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import com.google.protobuf.CodedInputStream;
 
 import net.morbz.osmonaut.binary.pbf.proto.Fileformat;
 import net.morbz.osmonaut.binary.pbf.proto.Fileformat.BlobHeader;
 
 /**
- * Parses a PBF data stream and extracts the raw data of each blob in sequence
- * until the end of the stream is reached.
+ * Parses a PBF file and extracts the position of each blob in sequence until
+ * the end of the file is reached.
  * 
  * @author Brett Henderson
  * @author Merten Peetz
@@ -19,6 +21,7 @@ import net.morbz.osmonaut.binary.pbf.proto.Fileformat.BlobHeader;
 public class RawBlobReader extends RawBlobProvider {
 	private boolean eof;
 	private PbfRawBlob nextBlob;
+	private long position;
 
 	/**
 	 * Creates a new instance.
@@ -26,16 +29,17 @@ public class RawBlobReader extends RawBlobProvider {
 	 * @param file
 	 *            The PBF file to be parsed.
 	 */
-	public RawBlobReader(RandomAccessFile file) {
+	public RawBlobReader(PbfFile file) {
 		super(file);
 		eof = false;
+		position = 0;
 	}
 
 	private BlobHeader readHeader(int headerLength) throws IOException {
-		byte[] headerBuffer = new byte[headerLength];
-		file.readFully(headerBuffer);
+		ByteBuffer headerBuffer = file.read(position, headerLength);
+		position += headerLength;
 
-		BlobHeader blobHeader = Fileformat.BlobHeader.parseFrom(headerBuffer);
+		BlobHeader blobHeader = Fileformat.BlobHeader.parseFrom(CodedInputStream.newInstance(headerBuffer));
 		return blobHeader;
 	}
 
@@ -46,16 +50,21 @@ public class RawBlobReader extends RawBlobProvider {
 			// cases it indicates a corrupt or truncated file.
 			int headerLength;
 			try {
-				headerLength = file.readInt();
+				headerLength = file.readInt(position);
+				position += 4;
 			} catch (EOFException e) {
 				eof = true;
 				return;
 			}
 
 			BlobHeader blobHeader = readHeader(headerLength);
-			long fileOffset = file.getFilePointer();
-			byte[] blobData = readRawBlob(blobHeader.getDatasize());
-			nextBlob = new PbfRawBlob(blobHeader.getType(), blobData, fileOffset);
+			long fileOffset = position;
+			int blobSize = blobHeader.getDatasize();
+			if(fileOffset + blobSize > file.size()) {
+				throw new EOFException();
+			}
+			position += blobSize;
+			nextBlob = new PbfRawBlob(blobHeader.getType(), file, fileOffset, blobSize);
 		} catch (IOException e) {
 			throw new RuntimeException("Unable to get next blob from PBF stream.", e);
 		}
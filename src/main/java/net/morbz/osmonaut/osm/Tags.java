@@ -42,6 +42,35 @@ public class Tags implements Iterable<String>, Externalizable {
 	private List<String> keys;
 	private List<String> values;
 
+	/**
+	 * Creates empty tags.
+	 */
+	public Tags() {
+
+	}
+
+	/**
+	 * Creates a copy of the given tags.
+	 * 
+	 * @param tags
+	 *            The tags to copy
+	 */
+	public Tags(Tags tags) {
+		tags.copyTo(this);
+	}
+
+	/**
+	 * Sets all tags on the given tags.
+	 * 
+	 * @param tags
+	 *            The tags to set the tags on
+	 */
+	protected void copyTo(Tags tags) {
+		for (String key : this) {
+			tags.set(key, get(key));
+		}
+	}
+
 	/**
 	 * Lazy creation of the arrays.
 	 */
@@ -190,8 +219,8 @@ public class Tags implements Iterable<String>, Externalizable {
 
 		String str = "";
 		str += "[" + "\n";
-		for (int i = 0; i < size(); i++) {
-			str += "\t" + "{ key: \"" + keys.get(i) + "\", value: \"" + values.get(i) + "\" }" + "\n";
+		for (String key : this) {
+			str += "\t" + "{ key: \"" + key + "\", value: \"" + get(key) + "\" }" + "\n";
 		}
 		str += "]";
 		return str;
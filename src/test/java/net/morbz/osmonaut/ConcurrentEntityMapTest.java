@@ -0,0 +1,67 @@
+package net.morbz.osmonaut;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import net.morbz.osmonaut.osm.LatLon;
+import net.morbz.osmonaut.osm.Node;
+
+public class ConcurrentEntityMapTest {
+	private static final int THREADS = 4;
+	private static final int NODES_PER_THREAD = 50000;
+
+	@Test
+	public void should_get_entities_added_by_multiple_threads() throws Exception {
+		final ConcurrentEntityMap<Node> map = new ConcurrentEntityMap<Node>();
+		ExecutorService executorService = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int i = 0; i < THREADS; i++) {
+				final int thread = i;
+				futures.add(executorService.submit(new Runnable() {
+					@Override
+					public void run() {
+						// Interleaved IDs, so that the threads add to the 
+						// same stripes
+						for (long id = thread; id < THREADS * NODES_PER_THREAD; id += THREADS) {
+							map.add(node(id * 97));
+							map.add(node(-id * 97 - 1));
+						}
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executorService.shutdown();
+		}
+		map.freeze();
+
+		for (long id = 0; id < THREADS * NODES_PER_THREAD; id++) {
+			assertThat(map.get(id * 97)).isEqualToComparingFieldByFieldRecursively(node(id * 97));
+			assertThat(map.get(-id * 97 - 1)).isEqualToComparingFieldByFieldRecursively(node(-id * 97 - 1));
+		}
+		assertThat(map.get(1)).isNull();
+		assertThat(map.get(-2)).isNull();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void should_not_add_entities_when_frozen() throws Exception {
+		ConcurrentEntityMap<Node> map = new ConcurrentEntityMap<Node>();
+		map.add(node(1));
+		map.freeze();
+		map.add(node(2));
+	}
+
+	private Node node(long id) {
+		return new Node(id, null, new LatLon(id / 100000000.0, -id / 100000000.0));
+	}
+}
@@ -0,0 +1,130 @@
+package net.morbz.osmonaut;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class ConcurrentIdTrackerTest {
+	private static final int THREADS = 4;
+	private static final int IDS = 200000;
+
+	@Test
+	public void should_track_ids_of_multiple_threads() throws Exception {
+		final ConcurrentIdTracker tracker = new ConcurrentIdTracker();
+		run(new Task() {
+			@Override
+			public void run(int thread) {
+				// Every thread sets all IDs, so that they compete for the words
+				for (long id = -IDS; id < IDS; id++) {
+					tracker.set(id);
+				}
+			}
+		});
+		assertThat(tracker.size()).isEqualTo(2 * IDS);
+
+		run(new Task() {
+			@Override
+			public void run(int thread) {
+				// Each thread unsets its own share of the odd IDs
+				for (long id = -IDS + 1 + 2 * thread; id < IDS; id += 2 * THREADS) {
+					tracker.unset(id);
+				}
+			}
+		});
+
+		assertThat(tracker.size()).isEqualTo(IDS);
+		assertThat(tracker.isEmpty()).isFalse();
+		for (long id = -IDS - 1; id <= IDS; id++) {
+			boolean expected = id >= -IDS && id < IDS && id % 2 == 0;
+			if (tracker.get(id) != expected) {
+				assertThat(tracker.get(id)).as("ID %d", id).isEqualTo(expected);
+			}
+		}
+	}
+
+	@Test
+	public void should_track_distant_ids_of_multiple_threads() throws Exception {
+		final ConcurrentIdTracker tracker = new ConcurrentIdTracker();
+		run(new Task() {
+			@Override
+			public void run(int thread) {
+				// Distant IDs, so that the threads create pages and 
+				// directories at the same time
+				for (long i = 0; i < 1000; i++) {
+					tracker.set((i << 32) + thread);
+					tracker.set(-(i << 32) - thread - 1);
+					tracker.unset(-(i << 32) - thread - 1);
+					tracker.set(-(i << 32) - thread - 1);
+				}
+			}
+		});
+
+		assertThat(tracker.size()).isEqualTo(2 * 1000 * THREADS);
+		for (long i = 0; i < 1000; i++) {
+			for (int thread = 0; thread < THREADS; thread++) {
+				assertThat(tracker.get((i << 32) + thread)).isTrue();
+				assertThat(tracker.get(-(i << 32) - thread - 1)).isTrue();
+			}
+			assertThat(tracker.get((i << 32) + THREADS)).isFalse();
+		}
+	}
+
+	@Test
+	public void should_track_ids_of_the_whole_long_range() throws Exception {
+		final ConcurrentIdTracker tracker = new ConcurrentIdTracker();
+		final long[] ids = { 1L << 36, (1L << 36) - 1, -(1L << 36), -(1L << 36) - 1, 1L << 47, -(1L << 47), 
+				1L << 48, -(1L << 48), Long.MAX_VALUE, Long.MIN_VALUE };
+		run(new Task() {
+			@Override
+			public void run(int thread) {
+				// All threads create the same pages at the same time. The 
+				// IDs of the threads differ in the lowest bits only.
+				for (long id : ids) {
+					tracker.set(id ^ thread);
+				}
+			}
+		});
+
+		assertThat(tracker.size()).isEqualTo(ids.length * THREADS);
+		for (long id : ids) {
+			for (int thread = 0; thread < THREADS; thread++) {
+				assertThat(tracker.get(id ^ thread)).as("ID %d", id ^ thread).isTrue();
+			}
+			assertThat(tracker.get(id ^ THREADS)).as("ID %d", id ^ THREADS).isFalse();
+			tracker.unset(id);
+			assertThat(tracker.get(id)).as("ID %d", id).isFalse();
+		}
+		assertThat(tracker.size()).isEqualTo(ids.length * (THREADS - 1));
+	}
+
+	private interface Task {
+		void run(int thread);
+	}
+
+	private void run(final Task task) throws Exception {
+		ExecutorService executorService = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int i = 0; i < THREADS; i++) {
+				final int thread = i;
+				futures.add(executorService.submit(new Runnable() {
+					@Override
+					public void run() {
+						task.run(thread);
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executorService.shutdown();
+		}
+	}
+}
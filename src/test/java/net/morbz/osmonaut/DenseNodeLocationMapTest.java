@@ -0,0 +1,10 @@
+package net.morbz.osmonaut;
+
+import net.morbz.osmonaut.osm.Node;
+
+public class DenseNodeLocationMapTest extends NodeLocationMapTest {
+	@Override
+	protected EntityMap<Node> newMap() {
+		return new DenseNodeLocationMap();
+	}
+}
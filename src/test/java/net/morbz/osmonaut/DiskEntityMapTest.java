@@ -0,0 +1,136 @@
+package net.morbz.osmonaut;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.morbz.osmonaut.osm.LatLon;
+import net.morbz.osmonaut.osm.Node;
+import net.morbz.osmonaut.osm.Tags;
+
+public class DiskEntityMapTest {
+	private DiskEntityMap<Node> map;
+
+	@Before
+	public void createMap() {
+		map = new DiskEntityMap<Node>("test");
+	}
+
+	@After
+	public void closeMap() {
+		map.close();
+	}
+
+	@Test
+	public void should_get_entities_added_out_of_order() throws Exception {
+		List<Long> ids = new ArrayList<Long>();
+		for (long id = 0; id < 10000; id++) {
+			ids.add(id);
+		}
+		Collections.shuffle(ids, new Random(42));
+		for (long id : ids) {
+			map.add(node(id, "a"));
+		}
+		assertThat(map.getRunCount()).isGreaterThan(1);
+		assertThat(map.get(ids.get(0))).isEqualToComparingFieldByFieldRecursively(node(ids.get(0), "a"));
+
+		// The runs are merged into one
+		map.freeze();
+		assertThat(map.getRunCount()).isEqualTo(1);
+		assertThat(map.getBlockCount()).isEqualTo((10000 + 255) / 256);
+		for (long id = 0; id < 10000; id++) {
+			assertThat(map.get(id)).isEqualToComparingFieldByFieldRecursively(node(id, "a"));
+		}
+	}
+
+	@Test
+	public void should_get_the_last_entity_added_twice() throws Exception {
+		for (long id = 0; id < 1000; id++) {
+			map.add(node(id, "a"));
+		}
+		for (long id = 500; id < 600; id++) {
+			map.add(node(id, "b"));
+		}
+		map.freeze();
+
+		assertThat(map.getRunCount()).isEqualTo(1);
+		assertThat(map.get(499)).isEqualToComparingFieldByFieldRecursively(node(499, "a"));
+		assertThat(map.get(500)).isEqualToComparingFieldByFieldRecursively(node(500, "b"));
+		assertThat(map.get(599)).isEqualToComparingFieldByFieldRecursively(node(599, "b"));
+		assertThat(map.get(600)).isEqualToComparingFieldByFieldRecursively(node(600, "a"));
+	}
+
+	@Test
+	public void should_get_entities_while_adding() throws Exception {
+		for (long id = 0; id < 1000; id++) {
+			map.add(node(id, "a"));
+			assertThat(map.get(id)).isEqualToComparingFieldByFieldRecursively(node(id, "a"));
+			if (id > 0) {
+				assertThat(map.get(id - 1)).isEqualToComparingFieldByFieldRecursively(node(id - 1, "a"));
+			}
+		}
+
+		// Lookups don't write the pending entities as a block
+		assertThat(map.getBlockCount()).isEqualTo(1000 / 256);
+		map.freeze();
+		assertThat(map.getBlockCount()).isEqualTo(1000 / 256 + 1);
+	}
+
+	@Test
+	public void should_get_entities_of_evicted_blocks() throws Exception {
+		// More blocks than are cached
+		int blocks = 300;
+		for (long id = 0; id < blocks * 256; id++) {
+			map.add(node(id, "a"));
+		}
+		map.freeze();
+		assertThat(map.getBlockCount()).isEqualTo(blocks);
+
+		// Every pass evicts the blocks of the previous one
+		for (int pass = 0; pass < 2; pass++) {
+			for (long id = pass; id < blocks * 256; id += 256) {
+				assertThat(map.get(id)).isEqualToComparingFieldByFieldRecursively(node(id, "a"));
+			}
+		}
+		Random random = new Random(42);
+		for (int i = 0; i < 2000; i++) {
+			long id = random.nextInt(blocks * 256);
+			assertThat(map.get(id)).isEqualToComparingFieldByFieldRecursively(node(id, "a"));
+		}
+	}
+
+	@Test
+	public void should_not_get_missing_entities() throws Exception {
+		assertThat(map.get(1)).isNull();
+		for (long id = 0; id < 2000; id += 2) {
+			map.add(node(id, "a"));
+		}
+		map.add(node(-10, "a"));
+
+		for (int pass = 0; pass < 2; pass++) {
+			for (long id = 1; id < 2000; id += 2) {
+				assertThat(map.get(id)).isNull();
+			}
+			assertThat(map.get(-1)).isNull();
+			assertThat(map.get(-11)).isNull();
+			assertThat(map.get(2000)).isNull();
+			assertThat(map.get(Long.MAX_VALUE)).isNull();
+			assertThat(map.get(Long.MIN_VALUE)).isNull();
+			assertThat(map.get(-10)).isEqualToComparingFieldByFieldRecursively(node(-10, "a"));
+			map.freeze();
+		}
+	}
+
+	private Node node(long id, String value) {
+		Tags tags = new Tags();
+		tags.set("name", value + id);
+		return new Node(id, tags, new LatLon(id / 1000000.0, -id / 1000000.0));
+	}
+}
@@ -0,0 +1,78 @@
+package net.morbz.osmonaut;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import net.morbz.osmonaut.osm.Entity;
+import net.morbz.osmonaut.osm.LatLon;
+import net.morbz.osmonaut.osm.Node;
+import net.morbz.osmonaut.osm.Relation;
+import net.morbz.osmonaut.osm.RelationMember;
+import net.morbz.osmonaut.osm.Tags;
+import net.morbz.osmonaut.osm.Way;
+
+public class EntityCodecTest {
+	@Test
+	public void should_decode_nodes() throws Exception {
+		List<Entity> entities = new ArrayList<Entity>();
+		entities.add(new Node(-5, null, new LatLon(48.867002500000005, 2.3217243)));
+		entities.add(new Node(1986875861, tags("railway", "subway_entrance", "name", "Concorde"),
+				new LatLon(-33.8653454, -2.3226649000000004)));
+		entities.add(new Node(1986875862, null, null));
+		entities.add(new Node(1986875870, tags("name", "Gaîté"), new LatLon(0.123456789, 180.5)));
+
+		assertRoundTrip(entities);
+	}
+
+	@Test
+	public void should_decode_ways() throws Exception {
+		List<Entity> entities = new ArrayList<Entity>();
+		entities.add(new Way(28302023, tags("bridge", "yes", "highway", "primary"), Arrays.asList(
+				new Node(310778934, null, new LatLon(48.8655762, 2.3216145)),
+				new Node(310778932, tags("highway", "crossing"), new LatLon(48.8654912, 2.3214681)),
+				new Node(4293897617L, null, null))));
+		entities.add(new Way(28302024, null, null));
+		entities.add(new Way(28302025, tags("highway", "primary"), new ArrayList<Node>()));
+
+		assertRoundTrip(entities);
+	}
+
+	@Test
+	public void should_decode_relations() throws Exception {
+		Way way = new Way(28302023, tags("bridge", "yes"), Arrays.asList(
+				new Node(310778934, null, new LatLon(48.8655762, 2.3216145)),
+				new Node(310778932, null, new LatLon(48.8654912, 2.3214681))));
+		List<RelationMember> members = Arrays.asList(new RelationMember(way, "outer"),
+				new RelationMember(new Node(1986875861, null, new LatLon(48.8667336, 2.3225672)), "stop"),
+				new RelationMember(new Node(1986875862, null, null), ""));
+
+		List<Entity> entities = new ArrayList<Entity>();
+		entities.add(new Relation(379422, tags("public_transport", "stop_area", "name", "Concorde"), members, true));
+		entities.add(new Relation(379423, null, new ArrayList<RelationMember>(), false));
+
+		assertRoundTrip(entities);
+	}
+
+	private void assertRoundTrip(List<Entity> entities) {
+		EntityCodec.Block block = EntityCodec.decode(EntityCodec.encode(entities));
+
+		assertThat(block.size()).isEqualTo(entities.size());
+		for (int i = entities.size() - 1; i >= 0; i--) {
+			assertThat(block.getId(i)).isEqualTo(entities.get(i).getId());
+			assertThat(block.get(i)).isEqualToComparingFieldByFieldRecursively(entities.get(i));
+		}
+	}
+
+	private Tags tags(String... keysValues) {
+		Tags tags = new Tags();
+		for (int i = 0; i < keysValues.length; i += 2) {
+			tags.set(keysValues[i], keysValues[i + 1]);
+		}
+		return tags;
+	}
+}
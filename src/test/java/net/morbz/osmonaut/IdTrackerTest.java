@@ -0,0 +1,148 @@
+package net.morbz.osmonaut;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class IdTrackerTest {
+	@Test
+	public void should_track_ids_when_array_becomes_bitmap_and_back() throws Exception {
+		IdTracker tracker = new IdTracker();
+		Set<Long> ids = new TreeSet<Long>();
+
+		// Every other ID, so that the IDs are never stored as runs
+		for (long id = 0; id < 2 * 4096; id += 2) {
+			set(tracker, ids, id);
+		}
+		assertSameIds(tracker, ids, 0, 2 * 4097);
+		set(tracker, ids, 2 * 4096);
+		assertSameIds(tracker, ids, 0, 2 * 4097);
+
+		// Down to and below the minimum size of a bitmap
+		for (long id = 2 * 4096; id >= 2 * 2048; id -= 2) {
+			unset(tracker, ids, id);
+		}
+		assertSameIds(tracker, ids, 0, 2 * 4097);
+		unset(tracker, ids, 2 * 2047);
+		assertSameIds(tracker, ids, 0, 2 * 4097);
+
+		for (long id = 0; id < 2 * 2047; id += 2) {
+			unset(tracker, ids, id);
+		}
+		assertThat(tracker.isEmpty()).isTrue();
+		assertSameIds(tracker, ids, 0, 2 * 4097);
+	}
+
+	@Test
+	public void should_track_ids_when_runs_are_split() throws Exception {
+		IdTracker tracker = new IdTracker();
+		Set<Long> ids = new TreeSet<Long>();
+		for (long id = 100; id < 10000; id++) {
+			set(tracker, ids, id);
+		}
+		assertSameIds(tracker, ids, 0, 10100);
+
+		// Split, shorten and drop runs
+		for (long id = 150; id < 10000; id += 100) {
+			unset(tracker, ids, id);
+		}
+		unset(tracker, ids, 100);
+		unset(tracker, ids, 9999);
+		unset(tracker, ids, 152);
+		unset(tracker, ids, 151);
+		unset(tracker, ids, 153);
+		assertSameIds(tracker, ids, 0, 10100);
+
+		// Merge runs again
+		set(tracker, ids, 151);
+		set(tracker, ids, 150);
+		set(tracker, ids, 153);
+		set(tracker, ids, 152);
+		assertSameIds(tracker, ids, 0, 10100);
+	}
+
+	@Test
+	public void should_track_random_ids() throws Exception {
+		IdTracker tracker = new IdTracker();
+		Set<Long> ids = new TreeSet<Long>();
+		Random random = new Random(42);
+		for (int i = 0; i < 200000; i++) {
+			// Dense and sparse phases pass all container thresholds
+			long id = random.nextInt(i % 40000 < 20000 ? 6000 : 65536 * 2);
+			if (random.nextInt(3) == 0) {
+				unset(tracker, ids, id);
+			} else {
+				set(tracker, ids, id);
+			}
+		}
+		assertSameIds(tracker, ids, 0, 65536 * 2);
+	}
+
+	@Test
+	public void should_track_negative_ids() throws Exception {
+		IdTracker tracker = new IdTracker();
+		Set<Long> ids = new TreeSet<Long>();
+		set(tracker, ids, -1);
+		set(tracker, ids, -65537);
+		set(tracker, ids, 0);
+		set(tracker, ids, 65536 * 3 + 5);
+
+		assertSameIds(tracker, ids, -65540, 65540);
+		assertThat(tracker.get(65536 * 3 + 5)).isTrue();
+		assertThat(tracker.get(65536 * 300)).isFalse();
+
+		unset(tracker, ids, -1);
+		unset(tracker, ids, -2);
+		assertSameIds(tracker, ids, -65540, 65540);
+	}
+
+	@Test
+	public void should_track_ids_of_the_whole_long_range() throws Exception {
+		IdTracker tracker = new IdTracker();
+		Set<Long> ids = new TreeSet<Long>();
+		long[] boundaries = { 1L << 36, (1L << 36) - 1, -(1L << 36), -(1L << 36) - 1, 1L << 47, -(1L << 47), 
+				1L << 48, -(1L << 48), Long.MAX_VALUE, Long.MIN_VALUE };
+		for (long id : boundaries) {
+			set(tracker, ids, id);
+			set(tracker, ids, id + 1);
+		}
+		assertSameIds(tracker, ids, boundaries);
+
+		for (long id : boundaries) {
+			unset(tracker, ids, id);
+		}
+		assertSameIds(tracker, ids, boundaries);
+	}
+
+	private void set(IdTracker tracker, Set<Long> ids, long id) {
+		tracker.set(id);
+		ids.add(id);
+	}
+
+	private void unset(IdTracker tracker, Set<Long> ids, long id) {
+		tracker.unset(id);
+		ids.remove(id);
+	}
+
+	private void assertSameIds(IdTracker tracker, Set<Long> ids, long[] boundaries) {
+		assertThat(tracker.size()).isEqualTo(ids.size());
+		for (long boundary : boundaries) {
+			for (long id = boundary - 2; id != boundary + 3; id++) {
+				assertThat(tracker.get(id)).as("ID %d", id).isEqualTo(ids.contains(id));
+			}
+		}
+	}
+
+	private void assertSameIds(IdTracker tracker, Set<Long> ids, long from, long to) {
+		assertThat(tracker.size()).isEqualTo(ids.size());
+		for (long id = from; id < to; id++) {
+			if (tracker.get(id) != ids.contains(id)) {
+				assertThat(tracker.get(id)).as("ID %d", id).isEqualTo(ids.contains(id));
+			}
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package net.morbz.osmonaut;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+import net.morbz.osmonaut.osm.LatLon;
+import net.morbz.osmonaut.osm.Node;
+
+public class MemoryEntityMapTest {
+	@Test
+	public void should_get_entities_added_out_of_order() throws Exception {
+		MemoryEntityMap<Node> map = new MemoryEntityMap<Node>();
+		long[] ids = { 5, 3, 1000007, -1, 2, 2000000, -1000001, 4 };
+		for (long id : ids) {
+			map.add(node(id));
+		}
+		map.freeze();
+
+		for (long id : ids) {
+			assertThat(map.get(id)).isEqualToComparingFieldByFieldRecursively(node(id));
+		}
+		assertThat(map.get(6)).isNull();
+		assertThat(map.get(-2)).isNull();
+		assertThat(map.get(5000000)).isNull();
+	}
+
+	@Test
+	public void should_get_entities_added_twice() throws Exception {
+		MemoryEntityMap<Node> map = new MemoryEntityMap<Node>();
+		Node node = node(7);
+
+		// More entities than IDs in a bucket
+		for (int i = 0; i <= 1000000; i++) {
+			map.add(node);
+		}
+		map.add(node(8));
+		map.freeze();
+
+		assertThat(map.get(7)).isSameAs(node);
+		assertThat(map.get(8)).isEqualToComparingFieldByFieldRecursively(node(8));
+	}
+
+	@Test
+	public void should_get_entities_of_the_whole_long_range() throws Exception {
+		MemoryEntityMap<Node> map = new MemoryEntityMap<Node>();
+		long[] ids = { 1L << 36, (1L << 36) - 1, -(1L << 36), -(1L << 36) - 1, 1L << 47, -(1L << 47), 1L << 48,
+				-(1L << 48), Long.MAX_VALUE, Long.MIN_VALUE };
+		for (long id : ids) {
+			map.add(node(id));
+		}
+		map.freeze();
+
+		for (long id : ids) {
+			assertThat(map.get(id).getId()).isEqualTo(id);
+		}
+		assertThat(map.get((1L << 36) + 1)).isNull();
+		assertThat(map.get(-(1L << 47) + 1)).isNull();
+		assertThat(map.get(Long.MIN_VALUE + 1)).isNull();
+	}
+
+	private Node node(long id) {
+		return new Node(id, null, new LatLon(id / 1000000.0, -id / 1000000.0));
+	}
+}
@@ -0,0 +1,148 @@
+package net.morbz.osmonaut;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.morbz.osmonaut.osm.LatLon;
+import net.morbz.osmonaut.osm.Node;
+import net.morbz.osmonaut.osm.Tags;
+
+public class NodeLocationMapTest {
+	private EntityMap<Node> map;
+
+	@Before
+	public void createMap() {
+		map = newMap();
+	}
+
+	@After
+	public void closeMap() {
+		map.close();
+	}
+
+	protected EntityMap<Node> newMap() {
+		return new NodeLocationMap();
+	}
+
+	@Test
+	public void should_get_nodes_added_out_of_order() throws Exception {
+		long[] ids = { 5, 3, (1 << 20) + 7, 2, 1 << 21, 4, 1 << 20 };
+		for (long id : ids) {
+			map.add(node(id));
+		}
+		assertNodes(ids);
+
+		// Adding after a lookup
+		map.add(node(1));
+		map.add(node(6));
+		map.freeze();
+		assertNodes(ids);
+		assertNodes(1, 6);
+	}
+
+	@Test
+	public void should_get_nodes_added_twice() throws Exception {
+		// More nodes than IDs in a bucket
+		for (int i = 0; i <= 1 << 20; i++) {
+			map.add(node(7));
+		}
+		map.add(node(8));
+		map.freeze();
+		assertNodes(7, 8);
+	}
+
+	@Test
+	public void should_get_nodes_with_negative_ids() throws Exception {
+		long[] ids = { -1, 0, -5, -(1 << 20) - 3, -2, 1 };
+		for (long id : ids) {
+			map.add(node(id));
+		}
+		map.freeze();
+		assertNodes(ids);
+	}
+
+	@Test
+	public void should_get_nodes_of_the_whole_long_range() throws Exception {
+		long[] ids = { 1L << 36, (1L << 36) - 1, -(1L << 36), -(1L << 36) - 1, 1L << 47, -(1L << 47), 1L << 48,
+				-(1L << 48), Long.MAX_VALUE, Long.MIN_VALUE };
+		for (long id : ids) {
+			map.add(node(id));
+		}
+		map.freeze();
+		assertNodes(ids);
+		assertThat(map.get((1L << 36) + 1)).isNull();
+		assertThat(map.get((1L << 48) - 1)).isNull();
+		assertThat(map.get(Long.MAX_VALUE - 1)).isNull();
+		assertThat(map.get(Long.MIN_VALUE + 1)).isNull();
+	}
+
+	@Test
+	public void should_not_get_missing_nodes() throws Exception {
+		map.add(node(10));
+		map.add(node(-10));
+		map.freeze();
+
+		assertThat(map.get(11)).isNull();
+		assertThat(map.get(0)).isNull();
+		assertThat(map.get(-11)).isNull();
+		assertThat(map.get(-1)).isNull();
+		assertThat(map.get(3L << 27)).isNull();
+		assertThat(map.get(-(3L << 27))).isNull();
+	}
+
+	@Test
+	public void should_keep_extreme_coordinates() throws Exception {
+		// Coordinates as decoded from the PBF file are kept exactly
+		long[][] locations = { { 900000000, 1800000000 }, { -900000000, -1800000000 }, 
+				{ 900000000, -1800000000 }, { -900000000, 1800000000 }, { 0, 0 }, { 1, -1 } };
+		for (int i = 0; i < locations.length; i++) {
+			map.add(new Node(i, null, new LatLon(decoded(locations[i][0]), decoded(locations[i][1]))));
+		}
+		map.freeze();
+		for (int i = 0; i < locations.length; i++) {
+			assertThat(map.get(i).getLatlon())
+					.isEqualTo(new LatLon(decoded(locations[i][0]), decoded(locations[i][1])));
+		}
+
+		// Other coordinates are rounded to 7 decimals
+		map.close();
+		map = newMap();
+		map.add(new Node(1, null, new LatLon(90, -180)));
+		map.add(new Node(2, null, new LatLon(-89.99999996, 179.99999994)));
+		map.freeze();
+		assertThat(map.get(1).getLatlon().getLat()).isCloseTo(90, within(1e-12));
+		assertThat(map.get(1).getLatlon().getLon()).isCloseTo(-180, within(1e-12));
+		assertThat(map.get(2).getLatlon().getLat()).isCloseTo(-90, within(1e-12));
+		assertThat(map.get(2).getLatlon().getLon()).isCloseTo(179.9999999, within(1e-12));
+	}
+
+	@Test
+	public void should_get_nodes_without_tags() throws Exception {
+		Tags tags = new Tags();
+		tags.set("railway", "subway_entrance");
+		map.add(new Node(1986875861, tags, new LatLon(48.867002500000005, 2.3217243)));
+		map.freeze();
+
+		assertThat(map.get(1986875861).getTags().size()).isEqualTo(0);
+	}
+
+	private void assertNodes(long... ids) {
+		for (long id : ids) {
+			assertThat(map.get(id)).isEqualToComparingFieldByFieldRecursively(node(id));
+		}
+	}
+
+	private Node node(long id) {
+		// A distinct location for every ID
+		return new Node(id, null, new LatLon(decoded(id % 900000000), decoded(-(id * 7 % 1800000000))));
+	}
+
+	private double decoded(long value) {
+		// As calculated by the PBF decoder with the default granularity
+		return 0.000000001 * (100L * value);
+	}
+}
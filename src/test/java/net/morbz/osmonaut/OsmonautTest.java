@@ -3,13 +3,38 @@ package net.morbz.osmonaut;
 import static net.morbz.osmonaut.osm.EntityType.NODE;
 import static net.morbz.osmonaut.osm.EntityType.WAY;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Predicate;
+import java.util.zip.Inflater;
 
+import org.assertj.core.api.ThrowableAssert.ThrowingCallable;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+
+import io.airlift.compress.Compressor;
+import io.airlift.compress.lz4.Lz4Compressor;
+import io.airlift.compress.zstd.ZstdCompressor;
+
+import net.morbz.osmonaut.binary.pbf.proto.Fileformat.Blob;
+import net.morbz.osmonaut.binary.pbf.proto.Fileformat.BlobHeader;
 import net.morbz.osmonaut.osm.Entity;
 import net.morbz.osmonaut.osm.EntityType;
 import net.morbz.osmonaut.osm.LatLon;
@@ -20,6 +45,9 @@ import net.morbz.osmonaut.osm.Tags;
 import net.morbz.osmonaut.osm.Way;
 
 public class OsmonautTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
 	@Test
 	public void should_find_nodes() throws Exception {
 		List<Node> nodes = scan(new EntityFilter(true, false, false), new Predicate<Tags>() {
@@ -66,6 +94,327 @@ public class OsmonautTest {
 		assertThat(concorde.getMembers()).filteredOn(only(WAY)).hasSize(4);
 	}
 
+	@Test
+	public void should_find_ways_with_positional_reads() throws Exception {
+		Osmonaut osmonaut = osmonaut(new EntityFilter(false, true, false));
+		osmonaut.setMemoryMapping(false);
+		List<Way> ways = scan(osmonaut, new Predicate<Tags>() {
+			@Override
+			public boolean test(Tags tags) {
+				return tags.hasKeyValue("bridge", "yes");
+			}
+		});
+
+		assertThat(ways).hasSize(2);
+		assertThat(ways.get(0)).isEqualToComparingFieldByFieldRecursively(new Way(28302023, bridgeTags(), nodes()));
+	}
+
+	@Test
+	public void should_find_ways_without_way_node_tags() throws Exception {
+		Osmonaut osmonaut = osmonaut(new EntityFilter(false, true, false));
+		osmonaut.setWayNodeTags(false);
+		List<Way> ways = scan(osmonaut, new Predicate<Tags>() {
+			@Override
+			public boolean test(Tags tags) {
+				return tags.hasKeyValue("bridge", "yes");
+			}
+		});
+
+		assertThat(ways).hasSize(2);
+		assertThat(ways.get(0)).isEqualToComparingFieldByFieldRecursively(new Way(28302023, bridgeTags(), nodes()));
+	}
+
+	@Test
+	public void should_find_ways_with_dense_node_locations() throws Exception {
+		Osmonaut osmonaut = osmonaut(new EntityFilter(false, true, false));
+		osmonaut.setWayNodeTags(false);
+		osmonaut.setDenseNodeLocations(true);
+		List<Way> ways = scan(osmonaut, new Predicate<Tags>() {
+			@Override
+			public boolean test(Tags tags) {
+				return tags.hasKeyValue("bridge", "yes");
+			}
+		});
+
+		assertThat(ways).hasSize(2);
+		assertThat(ways.get(0)).isEqualToComparingFieldByFieldRecursively(new Way(28302023, bridgeTags(), nodes()));
+	}
+
+	@Test
+	public void should_keep_member_node_tags_with_dense_node_locations() throws Exception {
+		Osmonaut osmonaut = osmonaut(new EntityFilter(false, false, true));
+		osmonaut.setDenseNodeLocations(true);
+		List<Relation> relations = scan(osmonaut, new Predicate<Tags>() {
+			@Override
+			public boolean test(Tags tags) {
+				return tags.hasKeyValue("public_transport", "stop_area") && tags.hasKeyValue("name", "Concorde");
+			}
+		});
+
+		assertThat(relations).hasSize(1);
+		assertThat(relations.get(0).getMembers()).extracting("entity").filteredOn("id", 1986875861L)
+				.extracting("tags").usingFieldByFieldElementComparator().containsExactly(entranceTags());
+	}
+
+	@Test
+	public void should_find_relations_in_lz4_compressed_file() throws Exception {
+		// Field 6 of the blob message
+		assertSameRelations(recompress(6, new Lz4Compressor()));
+	}
+
+	@Test
+	public void should_find_relations_in_zstd_compressed_file() throws Exception {
+		// Field 7 of the blob message
+		assertSameRelations(recompress(7, new ZstdCompressor()));
+	}
+
+	@Test
+	public void should_find_relations_stored_on_disk() throws Exception {
+		Osmonaut osmonaut = osmonaut(new EntityFilter(false, false, true));
+		osmonaut.setStoreOnDisk(true);
+		List<Relation> relations = scan(osmonaut, new Predicate<Tags>() {
+			@Override
+			public boolean test(Tags tags) {
+				return tags.hasKeyValue("public_transport", "stop_area") && tags.hasKeyValue("name", "Concorde");
+			}
+		});
+
+		assertThat(relations).hasSize(1);
+		Relation concorde = relations.get(0);
+		assertThat(concorde.getId()).isEqualTo(379422);
+		assertThat(concorde.getMembers()).filteredOn(only(NODE)).hasSize(13);
+		assertThat(concorde.getMembers()).filteredOn(only(WAY)).hasSize(4);
+	}
+
+	@Test
+	public void should_find_relations_with_stored_index() throws Exception {
+		Predicate<Tags> concorde = new Predicate<Tags>() {
+			@Override
+			public boolean test(Tags tags) {
+				return tags.hasKeyValue("public_transport", "stop_area") && tags.hasKeyValue("name", "Concorde");
+			}
+		};
+		File indexFile = new File(OsmonautTest.class.getResource("/concorde-paris.osm.pbf").getPath()
+				+ ".osmonaut-index");
+		try {
+			Osmonaut osmonaut = osmonaut(new EntityFilter(false, false, true));
+			osmonaut.setStoreIndex(true);
+			List<Relation> relations = scan(osmonaut, concorde);
+			assertThat(indexFile).exists();
+
+			// Second scan uses the stored index
+			osmonaut = osmonaut(new EntityFilter(false, false, true));
+			osmonaut.setStoreIndex(true);
+			List<Relation> indexedRelations = scan(osmonaut, concorde);
+			assertThat(indexedRelations).hasSize(1);
+			assertThat(indexedRelations.get(0)).isEqualToComparingFieldByFieldRecursively(relations.get(0));
+		} finally {
+			indexFile.delete();
+		}
+	}
+
+	@Test
+	public void should_find_relations_with_tag_filter() throws Exception {
+		TagFilter tagFilter = new TagFilter();
+		tagFilter.addKeyValue("public_transport", "stop_area");
+		Osmonaut osmonaut = osmonaut(new EntityFilter(false, false, true));
+		osmonaut.setTagFilter(tagFilter);
+		final List<Tags> neededTags = new ArrayList<>();
+		List<Relation> relations = scan(osmonaut, new Predicate<Tags>() {
+			@Override
+			public boolean test(Tags tags) {
+				neededTags.add(tags);
+				return tags.hasKeyValue("name", "Concorde");
+			}
+		});
+
+		assertThat(relations).hasSize(1);
+		assertThat(relations.get(0).getId()).isEqualTo(379422);
+		assertThat(relations.get(0).getMembers()).filteredOn(only(WAY)).hasSize(4);
+		for (Tags tags : neededTags) {
+			assertThat(tags.get("public_transport")).isEqualTo("stop_area");
+		}
+	}
+
+	@Test
+	public void should_find_relations_with_parallel_filtering() throws Exception {
+		Osmonaut osmonaut = osmonaut(new EntityFilter(false, false, true));
+		osmonaut.setParallelFiltering(true);
+		List<Relation> relations = scan(osmonaut, new Predicate<Tags>() {
+			@Override
+			public boolean test(Tags tags) {
+				return tags.hasKeyValue("public_transport", "stop_area") && tags.hasKeyValue("name", "Concorde");
+			}
+		});
+
+		assertThat(relations).hasSize(1);
+		Relation concorde = relations.get(0);
+		assertThat(concorde.getId()).isEqualTo(379422);
+		assertThat(concorde.getMembers()).filteredOn(only(NODE)).hasSize(13);
+		assertThat(concorde.getMembers()).filteredOn(only(WAY)).hasSize(4);
+	}
+
+	@Test
+	public void should_assemble_ways_with_parallel_filtering() throws Exception {
+		Predicate<Tags> predicate = new Predicate<Tags>() {
+			@Override
+			public boolean test(Tags tags) {
+				return tags.hasKey("highway") || tags.hasKey("railway");
+			}
+		};
+		List<Way> expected = scan(new EntityFilter(false, true, false), predicate);
+		Osmonaut osmonaut = osmonaut(new EntityFilter(false, true, false));
+		osmonaut.setProcessors(4);
+		osmonaut.setParallelFiltering(true);
+		List<Way> ways = scan(osmonaut, predicate);
+
+		assertThat(ways).hasSameSizeAs(expected).isNotEmpty();
+		for (int i = 0; i < expected.size(); i++) {
+			assertThat(ways.get(i)).isEqualToComparingFieldByFieldRecursively(expected.get(i));
+		}
+	}
+
+	@Test
+	public void should_assemble_relations_with_parallel_filtering() throws Exception {
+		Predicate<Tags> predicate = new Predicate<Tags>() {
+			@Override
+			public boolean test(Tags tags) {
+				return tags.hasKey("public_transport") || tags.hasKey("route");
+			}
+		};
+		List<Relation> expected = scan(new EntityFilter(false, false, true), predicate);
+		Osmonaut osmonaut = osmonaut(new EntityFilter(false, false, true));
+		osmonaut.setProcessors(4);
+		osmonaut.setParallelFiltering(true);
+		List<Relation> relations = scan(osmonaut, predicate);
+
+		assertThat(relations).hasSameSizeAs(expected).isNotEmpty();
+		for (int i = 0; i < expected.size(); i++) {
+			assertThat(relations.get(i)).isEqualToComparingFieldByFieldRecursively(expected.get(i));
+		}
+	}
+
+	@Test
+	public void should_find_ways_with_concurrent_receiver() throws Exception {
+		Osmonaut osmonaut = osmonaut(new EntityFilter(false, true, false));
+		osmonaut.setParallelFiltering(true);
+		osmonaut.setUnorderedDelivery(true);
+		final List<Way> ways = Collections.synchronizedList(new ArrayList<Way>());
+		osmonaut.scan(new IConcurrentOsmonautReceiver() {
+			@Override
+			public boolean needsEntity(EntityType type, Tags tags) {
+				return tags.hasKeyValue("bridge", "yes");
+			}
+
+			@Override
+			public void foundEntity(Entity entity) {
+				ways.add((Way) entity);
+			}
+		});
+
+		assertThat(ways).hasSize(2);
+		assertThat(ways).extracting("id").contains(28302023L);
+	}
+
+	@Test(timeout = 60000)
+	public void should_report_receiver_errors_of_decoder_threads() throws Exception {
+		for (boolean unorderedDelivery : new boolean[] { false, true }) {
+			Osmonaut osmonaut = osmonaut(new EntityFilter(false, true, false));
+			osmonaut.setParallelFiltering(true);
+			osmonaut.setUnorderedDelivery(unorderedDelivery);
+			final Error error = new AssertionError("Receiver failed");
+			Throwable thrown = catchThrowable(new ThrowingCallable() {
+				@Override
+				public void call() throws Throwable {
+					osmonaut.scan(new IConcurrentOsmonautReceiver() {
+						@Override
+						public boolean needsEntity(EntityType type, Tags tags) {
+							// Called by the decoder threads
+							throw error;
+						}
+
+						@Override
+						public void foundEntity(Entity entity) {
+						}
+					});
+				}
+			});
+
+			assertThat(thrown).isInstanceOf(RuntimeException.class).hasCause(error);
+		}
+	}
+
+	@Test
+	public void should_find_ways_with_shared_executor() throws Exception {
+		ExecutorService executorService = Executors.newFixedThreadPool(2);
+		try {
+			for (int i = 0; i < 2; i++) {
+				Osmonaut osmonaut = osmonaut(new EntityFilter(false, true, false));
+				osmonaut.setExecutorService(executorService);
+				List<Way> ways = scan(osmonaut, new Predicate<Tags>() {
+					@Override
+					public boolean test(Tags tags) {
+						return tags.hasKeyValue("bridge", "yes");
+					}
+				});
+
+				assertThat(ways).hasSize(2);
+				assertThat(executorService.isShutdown()).isFalse();
+			}
+		} finally {
+			executorService.shutdown();
+		}
+	}
+
+	@Test
+	public void should_find_nodes_with_adaptive_processors() throws Exception {
+		Osmonaut osmonaut = osmonaut(new EntityFilter(true, false, false));
+		osmonaut.setProcessors(4);
+		osmonaut.setParallelFiltering(true);
+		final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+		Predicate<Tags> predicate = new Predicate<Tags>() {
+			@Override
+			public boolean test(Tags tags) {
+				threads.add(Thread.currentThread().getName());
+				return tags.hasKeyValue("railway", "subway_entrance");
+			}
+		};
+
+		List<Node> nodes = scan(osmonaut, predicate);
+		Integer workers = osmonaut.getPassWorkers("final nodes");
+		assertThat(workers).isBetween(1, 4);
+		assertThat(osmonaut.getPassWorkers("final ways")).isNull();
+
+		threads.clear();
+		List<Node> rescannedNodes = scan(osmonaut, predicate);
+		assertThat(rescannedNodes).hasSameSizeAs(nodes);
+		for (int i = 0; i < nodes.size(); i++) {
+			assertThat(rescannedNodes.get(i)).isEqualToComparingFieldByFieldRecursively(nodes.get(i));
+		}
+		assertThat(threads.size()).isBetween(1, workers);
+	}
+
+	@Test
+	public void should_find_relations_with_receiver_threads() throws Exception {
+		Osmonaut osmonaut = osmonaut(new EntityFilter(false, false, true));
+		osmonaut.setReceiverThreads(4);
+		final List<Relation> relations = Collections.synchronizedList(new ArrayList<Relation>());
+		osmonaut.scan(new IConcurrentOsmonautReceiver() {
+			@Override
+			public boolean needsEntity(EntityType type, Tags tags) {
+				return tags.hasKeyValue("public_transport", "stop_area") && tags.hasKeyValue("name", "Concorde");
+			}
+
+			@Override
+			public void foundEntity(Entity entity) {
+				relations.add((Relation) entity);
+			}
+		});
+
+		assertThat(relations).hasSize(1);
+		assertThat(relations.get(0).getMembers()).filteredOn(only(WAY)).hasSize(4);
+	}
+
 	private Predicate<RelationMember> only(final EntityType type) {
 		return new Predicate<RelationMember>() {
 			@Override
@@ -75,10 +424,85 @@ public class OsmonautTest {
 		};
 	}
 
-	private <T> List<T> scan(EntityFilter filter, final Predicate<Tags> predicate) {
+	private void assertSameRelations(File file) {
+		Predicate<Tags> predicate = new Predicate<Tags>() {
+			@Override
+			public boolean test(Tags tags) {
+				return tags.hasKeyValue("public_transport", "stop_area");
+			}
+		};
+		List<Relation> expected = scan(new EntityFilter(false, false, true), predicate);
+		List<Relation> relations = scan(new Osmonaut(file.getPath(), new EntityFilter(false, false, true)), 
+				predicate);
+
+		assertThat(relations).hasSameSizeAs(expected).isNotEmpty();
+		for (int i = 0; i < expected.size(); i++) {
+			assertThat(relations.get(i)).isEqualToComparingFieldByFieldRecursively(expected.get(i));
+		}
+	}
+
+	/**
+	 * Copies the test file with the blobs compressed by the compressor.
+	 */
+	private File recompress(int dataField, Compressor compressor) throws Exception {
+		File file = temporaryFolder.newFile();
+		String source = OsmonautTest.class.getResource("/concorde-paris.osm.pbf").getPath();
+		try (DataInputStream in = new DataInputStream(new FileInputStream(source));
+				DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+			while (true) {
+				int headerLength;
+				try {
+					headerLength = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				byte[] headerBytes = new byte[headerLength];
+				in.readFully(headerBytes);
+				BlobHeader header = BlobHeader.parseFrom(headerBytes);
+				byte[] blobBytes = new byte[header.getDatasize()];
+				in.readFully(blobBytes);
+
+				// Inflate the content
+				Blob blob = Blob.parseFrom(blobBytes);
+				byte[] content = new byte[blob.getRawSize()];
+				Inflater inflater = new Inflater();
+				inflater.setInput(blob.getZlibData().toByteArray());
+				assertThat(inflater.inflate(content)).isEqualTo(content.length);
+				inflater.end();
+
+				// Compress the content
+				byte[] compressed = new byte[compressor.maxCompressedLength(content.length)];
+				int compressedLength = compressor.compress(content, 0, content.length, compressed, 0, 
+						compressed.length);
+				ByteString data = ByteString.copyFrom(compressed, 0, compressedLength);
+				int blobLength = CodedOutputStream.computeInt32Size(2, content.length) 
+						+ CodedOutputStream.computeBytesSize(dataField, data);
+				byte[] newBlob = new byte[blobLength];
+				CodedOutputStream blobOut = CodedOutputStream.newInstance(newBlob);
+				blobOut.writeInt32(2, content.length);
+				blobOut.writeBytes(dataField, data);
+				blobOut.checkNoSpaceLeft();
+
+				byte[] newHeader = header.toBuilder().setDatasize(blobLength).build().toByteArray();
+				out.writeInt(newHeader.length);
+				out.write(newHeader);
+				out.write(newBlob);
+			}
+		}
+		return file;
+	}
+
+	private Osmonaut osmonaut(EntityFilter filter) {
 		String file = OsmonautTest.class.getResource("/concorde-paris.osm.pbf").getPath();
+		return new Osmonaut(file, filter);
+	}
+
+	private <T> List<T> scan(EntityFilter filter, final Predicate<Tags> predicate) {
+		return scan(osmonaut(filter), predicate);
+	}
+
+	private <T> List<T> scan(Osmonaut osmonaut, final Predicate<Tags> predicate) {
 		final List<T> acc = new ArrayList<>();
-		Osmonaut osmonaut = new Osmonaut(file, filter);
 		osmonaut.scan(new IOsmonautReceiver() {
 			@Override
 			public boolean needsEntity(EntityType type, Tags tags) {
@@ -0,0 +1,87 @@
+package net.morbz.osmonaut;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import net.morbz.osmonaut.binary.OsmonautSink;
+import net.morbz.osmonaut.binary.pbf.PbfDecoder;
+import net.morbz.osmonaut.osm.Entity;
+import net.morbz.osmonaut.osm.EntityType;
+
+public class PbfDecoderTest {
+	@Test
+	public void should_adapt_workers_during_a_scan() throws Exception {
+		PbfDecoder decoder = new PbfDecoder(file(), 4);
+		try {
+			// The sink takes far longer than decoding, so one worker and the
+			// headroom are enough
+			decoder.setAdaptationWindow(1);
+			SlowSink sink = new SlowSink();
+			decoder.scan(EntityType.NODE, sink);
+			assertThat(sink.entities.get()).isGreaterThan(0);
+			assertThat(decoder.getCurrentWorkers()).isEqualTo(2);
+			assertThat(decoder.getNeededWorkers()).isEqualTo(2);
+
+			// The next scan starts with the active workers
+			decoder.setActiveWorkers(3);
+			decoder.setAdaptationWindow(0);
+			decoder.scan(EntityType.NODE, new SlowSink());
+			assertThat(decoder.getCurrentWorkers()).isEqualTo(3);
+		} finally {
+			decoder.close();
+		}
+	}
+
+	@Test
+	public void should_keep_workers_without_adaptation_window() throws Exception {
+		PbfDecoder decoder = new PbfDecoder(file(), 4);
+		try {
+			decoder.scan(EntityType.NODE, new SlowSink());
+			assertThat(decoder.getCurrentWorkers()).isEqualTo(4);
+			assertThat(decoder.getNeededWorkers()).isEqualTo(2);
+		} finally {
+			decoder.close();
+		}
+	}
+
+	private File file() {
+		return new File(PbfDecoderTest.class.getResource("/concorde-paris.osm.pbf").getPath());
+	}
+
+	/**
+	 * Waits for a second before taking the first entity.
+	 */
+	private static class SlowSink implements OsmonautSink {
+		private AtomicInteger entities = new AtomicInteger();
+
+		@Override
+		public boolean isNeededByReceiver(Entity entity) {
+			return true;
+		}
+
+		@Override
+		public boolean isNeededAsMember(Entity entity) {
+			return false;
+		}
+
+		@Override
+		public Entity foundEntityInDecoder(Entity entity, boolean neededByReceiver) {
+			return entity;
+		}
+
+		@Override
+		public void foundEntity(Entity entity, boolean neededByReceiver) {
+			if (entities.getAndIncrement() == 0) {
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+}